@@ -1,8 +1,24 @@
 -- Add all your SQL setup statements here.
 
-CREATE TABLE Users_ckirby03 (username varchar(30) PRIMARY KEY, password varbinary (1000), balance int);
-CREATE TABLE Itineraries_ckirby03 (itid int PRIMARY KEY, fid1 int REFERENCES FLIGHTS(fid), fid2 int REFERENCES FLIGHTS(fid));
+CREATE TABLE Users_ckirby03 (username varchar(30) PRIMARY KEY, username_lower varchar(30) NOT NULL UNIQUE, password varbinary (1000), balance int, version int NOT NULL DEFAULT 0, token_epoch int NOT NULL DEFAULT 0, token_salt bigint NOT NULL DEFAULT CAST(CRYPT_GEN_RANDOM(8) AS bigint));
+CREATE TABLE Itineraries_ckirby03 (itid int PRIMARY KEY, fid1 int REFERENCES FLIGHTS(fid), fid2 int REFERENCES FLIGHTS(fid), UNIQUE (fid1, fid2));
 CREATE TABLE Reservations_ckirby03 (rid int PRIMARY KEY, username varchar(30) REFERENCES Users_ckirby03(username), paid int, itid int REFERENCES Itineraries_ckirby03(itid));
+CREATE TABLE Counters_ckirby03 (name varchar(30) PRIMARY KEY, next_value int NOT NULL);
+INSERT INTO Counters_ckirby03 VALUES ('rid', 1), ('itid', 1);
+CREATE TABLE SeatsBooked_ckirby03 (fid int PRIMARY KEY REFERENCES FLIGHTS(fid), booked int NOT NULL, version int NOT NULL);
+-- Counts the seats of reservations made before the counters existed, when upgrading a database
+-- that already has reservations; a no-op on a fresh one
+INSERT INTO SeatsBooked_ckirby03 (fid, booked, version)
+SELECT legs.fid, COUNT(*), 0 FROM (
+  SELECT i.fid1 AS fid FROM Reservations_ckirby03 AS r JOIN Itineraries_ckirby03 AS i ON i.itid = r.itid
+  UNION ALL
+  SELECT i.fid2 FROM Reservations_ckirby03 AS r JOIN Itineraries_ckirby03 AS i ON i.itid = r.itid WHERE i.fid2 IS NOT NULL
+) AS legs GROUP BY legs.fid;
+
+-- Best one-stop itineraries per city pair and day, rebuilt by OneStopTable into whichever of
+-- slots 0 and 1 OneStopsInfo does not name as active
+CREATE TABLE OneStops_ckirby03 (slot int, day_of_month int, origin_city varchar(34), dest_city varchar(34), position int, fid1 int, fid2 int, total_time int, PRIMARY KEY (slot, origin_city, dest_city, day_of_month, position));
+CREATE TABLE OneStopsInfo_ckirby03 (k int, fingerprint bigint, slot int);
 
 
 
@@ -0,0 +1,214 @@
+package flightapp;
+
+import java.util.Arrays;
+
+/**
+ * Splits a command line into tokens without regular expressions or per-token objects.
+ *
+ * Tokens are separated by whitespace, and a token in double quotes may contain whitespace; the
+ * quotes are not part of it. A quote with no closing quote after it is an ordinary character.
+ * This matches the pattern {@code "([^"]*)"|(\S+)} the command line has always been split with.
+ *
+ * Tokens are kept as offsets into the line, in arrays reused from one line to the next, so a
+ * parser should be reused by one thread rather than shared. Only {@link #token} creates strings.
+ */
+public class CommandParser {
+  private CharSequence line = "";
+  private int[] starts = new int[8];
+  private int[] ends = new int[8];
+  private int count;
+
+  /**
+   * Splits the line into tokens, replacing those of the previous line
+   */
+  public CommandParser parse(CharSequence line) {
+    this.line = line;
+    count = 0;
+    int length = line.length();
+    int i = 0;
+    while (i < length) {
+      char c = line.charAt(i);
+      if (isWhitespace(c)) {
+        i++;
+        continue;
+      }
+      if (c == '"') {
+        int close = indexOfQuote(line, i + 1);
+        if (close >= 0) {
+          add(i + 1, close);
+          i = close + 1;
+          continue;
+        }
+      }
+      int end = i + 1;
+      while (end < length && !isWhitespace(line.charAt(end))) {
+        end++;
+      }
+      add(i, end);
+      i = end;
+    }
+    return this;
+  }
+
+  /**
+   * Number of tokens in the line
+   */
+  public int size() {
+    return count;
+  }
+
+  public String token(int index) {
+    checkIndex(index);
+    return line.subSequence(starts[index], ends[index]).toString();
+  }
+
+  /**
+   * Whether the token is exactly the given text
+   */
+  public boolean tokenEquals(int index, String text) {
+    checkIndex(index);
+    int start = starts[index];
+    if (ends[index] - start != text.length()) {
+      return false;
+    }
+    for (int i = 0; i < text.length(); i++) {
+      if (line.charAt(start + i) != text.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses the token as a decimal int, accepting exactly what {@link Integer#parseInt} accepts
+   *
+   * @throws NumberFormatException if the token is not an int
+   */
+  public int intToken(int index) throws NumberFormatException {
+    checkIndex(index);
+    int start = starts[index];
+    int end = ends[index];
+    if (start == end) {
+      throw notAnInt(index);
+    }
+    boolean negative = false;
+    int limit = -Integer.MAX_VALUE;
+    int i = start;
+    char first = line.charAt(i);
+    if (first == '-' || first == '+') {
+      if (first == '-') {
+        negative = true;
+        limit = Integer.MIN_VALUE;
+      }
+      if (++i == end) {
+        throw notAnInt(index);
+      }
+    }
+    // Accumulated negatively, since the magnitude of MIN_VALUE is larger than MAX_VALUE
+    int multiplyLimit = limit / 10;
+    int result = 0;
+    for (; i < end; i++) {
+      int digit = Character.digit(line.charAt(i), 10);
+      if (digit < 0 || result < multiplyLimit) {
+        throw notAnInt(index);
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        throw notAnInt(index);
+      }
+      result -= digit;
+    }
+    return negative ? result : -result;
+  }
+
+  // The token's hash, equal to the String.hashCode() of its text
+  int tokenHash(int index) {
+    checkIndex(index);
+    int hash = 0;
+    for (int i = starts[index]; i < ends[index]; i++) {
+      hash = 31 * hash + line.charAt(i);
+    }
+    return hash;
+  }
+
+  private NumberFormatException notAnInt(int index) {
+    return new NumberFormatException("For input string: \"" + token(index) + "\"");
+  }
+
+  private void add(int start, int end) {
+    if (count == starts.length) {
+      starts = Arrays.copyOf(starts, count * 2);
+      ends = Arrays.copyOf(ends, count * 2);
+    }
+    starts[count] = start;
+    ends[count] = end;
+    count++;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= count) {
+      throw new IndexOutOfBoundsException("Token " + index + " of " + count);
+    }
+  }
+
+  private static int indexOfQuote(CharSequence line, int from) {
+    for (int i = from; i < line.length(); i++) {
+      if (line.charAt(i) == '"') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // The characters matched by \s in a Java regular expression
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Maps command names to handlers, looked up by a token without creating a string for it
+   */
+  public static class Table<V> {
+    private final String[] names;
+    private final Object[] values;
+    private final int mask;
+    private int size;
+
+    public Table(int capacity) {
+      int slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2;
+      names = new String[slots];
+      values = new Object[slots];
+      mask = slots - 1;
+    }
+
+    public void put(String name, V value) {
+      if (size * 2 >= names.length) {
+        throw new IllegalStateException("Table is full");
+      }
+      int slot = name.hashCode() & mask;
+      while (names[slot] != null && !names[slot].equals(name)) {
+        slot = (slot + 1) & mask;
+      }
+      if (names[slot] == null) {
+        size++;
+      }
+      names[slot] = name;
+      values[slot] = value;
+    }
+
+    /**
+     * Returns the value for the name in the given token of the parser, or null if it has none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(CommandParser parser, int index) {
+      int slot = parser.tokenHash(index) & mask;
+      while (names[slot] != null) {
+        if (parser.tokenEquals(index, names[slot])) {
+          return (V) values[slot];
+        }
+        slot = (slot + 1) & mask;
+      }
+      return null;
+    }
+  }
+}
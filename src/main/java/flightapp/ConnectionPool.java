@@ -0,0 +1,245 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide pool of database connections shared by every session.
+ *
+ * Sessions borrow a connection for the length of one transaction and give it back afterwards,
+ * so the number of open connections is bounded by flightapp.pool_max_size rather than by the
+ * number of sessions. Each pooled connection keeps its own cache of prepared statements, so
+ * statements are prepared once per connection instead of once per session.
+ *
+ * Connections that sat idle for longer than flightapp.pool_validate_after_seconds are checked
+ * before they are handed out, and replaced if they no longer work.
+ */
+public class ConnectionPool {
+  private static final String MAX_SIZE_PROPERTY = "flightapp.pool_max_size";
+  private static final String TIMEOUT_PROPERTY = "flightapp.pool_timeout_ms";
+  private static final String VALIDATE_AFTER_PROPERTY = "flightapp.pool_validate_after_seconds";
+  private static final String STATEMENT_CACHE_SIZE_PROPERTY = "flightapp.statement_cache_size";
+  private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+  private static volatile ConnectionPool instance;
+
+  private final int maxSize;
+  private final long timeoutNanos;
+  private final long validateAfterNanos;
+  private final int statementCacheSize;
+
+  // Guarded by this
+  private final ArrayDeque<Pooled> idle = new ArrayDeque<>();
+  private int open;
+
+  ConnectionPool(int maxSize, long timeoutMillis, long validateAfterSeconds,
+                 int statementCacheSize) {
+    this.maxSize = Math.max(1, maxSize);
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.validateAfterNanos = TimeUnit.SECONDS.toNanos(validateAfterSeconds);
+    this.statementCacheSize = Math.max(1, statementCacheSize);
+  }
+
+  /**
+   * Returns the process-wide pool, creating it on first use
+   */
+  public static ConnectionPool getInstance() throws IOException {
+    ConnectionPool pool = instance;
+    if (pool == null) {
+      synchronized (ConnectionPool.class) {
+        pool = instance;
+        if (pool == null) {
+          pool = new ConnectionPool(DBConnUtils.getIntProperty(MAX_SIZE_PROPERTY, 16),
+                  DBConnUtils.getIntProperty(TIMEOUT_PROPERTY, 30000),
+                  DBConnUtils.getIntProperty(VALIDATE_AFTER_PROPERTY, 30),
+                  DBConnUtils.getIntProperty(STATEMENT_CACHE_SIZE_PROPERTY, 64));
+          instance = pool;
+        }
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Takes an idle connection, opening a new one if fewer than the maximum are open, and waits
+   * for one to be given back otherwise.
+   *
+   * @throws SQLException if no connection becomes available in time, or one cannot be opened
+   */
+  public Pooled borrow() throws SQLException, IOException {
+    Pooled pooled = null;
+    synchronized (this) {
+      long deadline = System.nanoTime() + timeoutNanos;
+      while (idle.isEmpty() && open >= maxSize) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          throw new SQLException("Timed out waiting for one of " + maxSize
+                  + " database connections");
+        }
+        try {
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+      }
+      if (!idle.isEmpty()) {
+        pooled = idle.pop();
+      } else {
+        // Reserve the slot before opening outside the lock
+        open++;
+      }
+    }
+
+    if (pooled != null) {
+      if (System.nanoTime() - pooled.idleSince < validateAfterNanos
+          || pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+        return pooled;
+      }
+      pooled.closeQuietly();
+      // The slot stays reserved for the replacement
+    }
+    try {
+      return new Pooled(DBConnUtils.openConnection());
+    } catch (SQLException | IOException | RuntimeException e) {
+      synchronized (this) {
+        open--;
+        notify();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Gives a borrowed connection back. Connections that are closed or still in a transaction
+   * are discarded instead of being reused.
+   */
+  public void release(Pooled pooled) {
+    boolean reusable;
+    try {
+      reusable = !pooled.connection.isClosed() && pooled.connection.getAutoCommit();
+    } catch (SQLException e) {
+      reusable = false;
+    }
+    if (!reusable) {
+      discard(pooled);
+      return;
+    }
+    pooled.unpinStatements();
+    synchronized (this) {
+      pooled.idleSince = System.nanoTime();
+      idle.push(pooled);
+      notify();
+    }
+  }
+
+  /**
+   * Closes a borrowed connection that failed instead of giving it back, freeing its slot for a
+   * new one
+   */
+  public void discard(Pooled pooled) {
+    pooled.closeQuietly();
+    synchronized (this) {
+      open--;
+      notify();
+    }
+  }
+
+  /**
+   * Number of connections currently open, idle or borrowed
+   */
+  public synchronized int size() {
+    return open;
+  }
+
+  /**
+   * A pooled connection and its prepared statements
+   */
+  public class Pooled {
+    private final Connection connection;
+    private final TransactionTracker tracker;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    // SQL of the statements handed out during the current borrow, which are never closed
+    //    before it ends
+    private final Set<String> pinned = new HashSet<>();
+    private long idleSince;
+
+    private Pooled(Connection connection) throws SQLException {
+      this.connection = connection;
+      this.tracker = new TransactionTracker(connection);
+      this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+          if (size() <= statementCacheSize || pinned.contains(eldest.getKey())) {
+            return false;
+          }
+          closeQuietly(eldest.getValue());
+          return true;
+        }
+      };
+    }
+
+    /**
+     * The connection, wrapped so its transactions are tracked
+     */
+    public Connection connection() {
+      return tracker.connection();
+    }
+
+    public TransactionTracker tracker() {
+      return tracker;
+    }
+
+    /**
+     * Returns this connection's prepared statement for the given SQL, preparing it the first
+     * time. The least recently used statements are closed once more than
+     * flightapp.statement_cache_size are cached, but only after the borrow that last used them
+     * ends, so the borrower may keep every statement it prepared.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+      pinned.add(sql);
+      PreparedStatement statement = statements.get(sql);
+      if (statement == null || statement.isClosed()) {
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+      }
+      return statement;
+    }
+
+    // Closes the least recently used statements beyond the cache size, now that the borrow
+    //    that pinned them has ended
+    private void unpinStatements() {
+      pinned.clear();
+      Iterator<PreparedStatement> eldest = statements.values().iterator();
+      while (statements.size() > statementCacheSize) {
+        closeQuietly(eldest.next());
+        eldest.remove();
+      }
+    }
+
+    private void closeQuietly(PreparedStatement statement) {
+      try {
+        statement.close();
+      } catch (SQLException e) {
+        // The statement is dropped either way
+      }
+    }
+
+    private void closeQuietly() {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        // Already unusable
+      }
+    }
+  }
+}
@@ -5,12 +5,17 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.Locale;
 import java.util.Properties;
+import com.microsoft.sqlserver.jdbc.SQLServerConnection;
 
 /**
  * A collection of utility methods to help with parsing dbconn.properties.
  */
 public class DBConnUtils {
+  // Contents of dbconn.properties, read on first use
+  private static volatile Properties configProps;
+
   /**
    * Open and return a connection using dbconn.properties file
    *
@@ -19,8 +24,7 @@ public class DBConnUtils {
    */
   public static Connection openConnection() throws SQLException, IOException {
     // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
+    Properties configProps = configProperties();
 
     String serverURL = configProps.getProperty("flightapp.server_url");
     String dbName = configProps.getProperty("flightapp.database_name");
@@ -48,9 +52,7 @@ public class DBConnUtils {
    * @throws IOException
    */
   public static String getTableSuffix() throws SQLException, IOException {
-    // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
+    Properties configProps = configProperties();
 
     final String PROPERTY_NAME = "flightapp.tablename_suffix";
 
@@ -65,4 +67,93 @@ public class DBConnUtils {
       return suffix;
     }
   }
+
+  /**
+   * Get an optional application setting, checking dbconn.properties before the system
+   * properties
+   *
+   * @returns defaultValue if the setting wasn't specified, or was specified and empty
+   * @throws IOException
+   */
+  public static String getProperty(String name, String defaultValue) throws IOException {
+    String value = configProperties().getProperty(name);
+    if (value == null || value.trim().isEmpty()) {
+      value = System.getProperty(name);
+    }
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return value.trim();
+  }
+
+  /**
+   * Get an optional boolean application setting
+   *
+   * @throws IOException
+   */
+  public static boolean getBooleanProperty(String name, boolean defaultValue) throws IOException {
+    return Boolean.parseBoolean(getProperty(name, Boolean.toString(defaultValue)));
+  }
+
+  /**
+   * Get an optional integer application setting
+   *
+   * @throws IOException
+   */
+  public static int getIntProperty(String name, int defaultValue) throws IOException {
+    String value = getProperty(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Setting " + name + " must be an integer: " + value, e);
+    }
+  }
+
+  /**
+   * Get an optional transaction isolation setting: one of serializable, repeatable_read,
+   * read_committed or snapshot. Snapshot isolation must be allowed on the database.
+   *
+   * @returns the matching {@code Connection} isolation level
+   * @throws IOException
+   */
+  public static int getIsolationProperty(String name, int defaultLevel) throws IOException {
+    String value = getProperty(name, null);
+    if (value == null) {
+      return defaultLevel;
+    }
+    switch (value.toLowerCase(Locale.ROOT)) {
+      case "serializable":
+        return Connection.TRANSACTION_SERIALIZABLE;
+      case "repeatable_read":
+        return Connection.TRANSACTION_REPEATABLE_READ;
+      case "read_committed":
+        return Connection.TRANSACTION_READ_COMMITTED;
+      case "snapshot":
+        return SQLServerConnection.TRANSACTION_SNAPSHOT;
+      default:
+        throw new IllegalArgumentException("Setting " + name + " must be serializable, "
+            + "repeatable_read, read_committed or snapshot: " + value);
+    }
+  }
+
+  // Reads dbconn.properties the first time it is needed; every later call shares the result
+  private static Properties configProperties() throws IOException {
+    Properties props = configProps;
+    if (props == null) {
+      synchronized (DBConnUtils.class) {
+        props = configProps;
+        if (props == null) {
+          props = new Properties();
+          try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+            props.load(in);
+          }
+          configProps = props;
+        }
+      }
+    }
+    return props;
+  }
 }
@@ -0,0 +1,89 @@
+package flightapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client for a {@link FlightServer} session.
+ *
+ * {@link #call} pipelines: it sends a whole list of commands in one write and then reads their
+ * responses, so the list costs one network round trip instead of one per command. The server
+ * still runs the commands one at a time, in order, like {@link FlightService#execute} would.
+ */
+public class FlightClient implements AutoCloseable {
+  private final Socket socket;
+  private final OutputStream out;
+  private final DataInputStream in;
+
+  public FlightClient(String host, int port) throws IOException {
+    socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+    out = new BufferedOutputStream(socket.getOutputStream());
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+  }
+
+  /**
+   * Sends one command and returns its response
+   */
+  public String call(String command) throws IOException {
+    return call(List.of(command)).get(0);
+  }
+
+  /**
+   * Sends the commands without waiting between them and returns their responses, in order.
+   * Responses stop after "quit", after which the server closes the connection.
+   */
+  public List<String> call(List<String> commands) throws IOException {
+    for (String command : commands) {
+      if (command.indexOf('\n') >= 0) {
+        throw new IllegalArgumentException("Commands cannot span lines: " + command);
+      }
+      out.write(command.getBytes(StandardCharsets.UTF_8));
+      out.write('\n');
+    }
+    out.flush();
+
+    List<String> responses = new ArrayList<>(commands.size());
+    for (String command : commands) {
+      String response = readResponse(in);
+      if (response == null) {
+        break;
+      }
+      responses.add(response);
+    }
+    return responses;
+  }
+
+  // Reads one length-framed response, or returns null at the end of the stream
+  static String readResponse(InputStream in) throws IOException {
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b < 0) {
+        if (header.size() > 0) {
+          throw new EOFException("Connection closed in a response header");
+        }
+        return null;
+      }
+      header.write(b);
+    }
+    byte[] body = new byte[Integer.parseInt(header.toString(StandardCharsets.US_ASCII))];
+    new DataInputStream(in).readFully(body);
+    return new String(body, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+}
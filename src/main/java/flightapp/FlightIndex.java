@@ -0,0 +1,404 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Read-only, in-memory index over the FLIGHTS table used to answer searches without a
+ * database round trip.
+ *
+ * FLIGHTS is never modified by the application, so the index is loaded once per process and
+ * shared by every session. Flights live in a columnar {@link FlightStore} whose rows are already
+ * grouped by route; the index partitions those routes by day of month and origin city, so the
+ * outgoing flights of a city are contiguous rows ordered by destination, actual_time and fid.
+ * City names are matched case-insensitively and ignoring trailing spaces, as the database's
+ * default collation does.
+ */
+public class FlightIndex {
+  private static final String ENABLED_PROPERTY = "flightapp.search_index";
+  private static final String SNAPSHOT_PROPERTY = "flightapp.flight_snapshot";
+  private static final String PARALLELISM_PROPERTY = "flightapp.search_parallelism";
+  private static final String MIN_PARALLEL_CONNECTIONS_PROPERTY =
+          "flightapp.search_parallel_min_connections";
+
+  private static final int[] NO_ROUTES = new int[0];
+  private static final int[] NO_ROUTE_STARTS = new int[] {0};
+
+  private static volatile FlightIndex instance;
+
+  private final FlightStore store;
+  // day of month -> origin city code -> destination city codes flown that day, ascending
+  private final int[][][] destinations;
+  // day of month -> origin city code -> first row of each route in destinations, followed by
+  //    the end of the last route
+  private final int[][][] routeStarts;
+
+  // Pool for parallel one-stop searches, or null to search sequentially
+  private volatile ForkJoinPool searchPool;
+  private volatile int minParallelConnections;
+
+  FlightIndex(FlightStore store) {
+    this.store = store;
+    int maxDay = 0;
+    for (int row = 0; row < store.size(); row++) {
+      maxDay = Math.max(maxDay, store.day(row));
+    }
+    destinations = new int[maxDay + 1][store.numCities()][];
+    routeStarts = new int[maxDay + 1][store.numCities()][];
+
+    // Rows are ordered by day, origin and destination, so each (day, origin) pair is one run of
+    //    rows made up of one run per destination
+    int row = 0;
+    while (row < store.size()) {
+      int day = store.day(row);
+      int origin = store.origin(row);
+      int end = row;
+      int numRoutes = 0;
+      while (end < store.size() && store.day(end) == day && store.origin(end) == origin) {
+        if (end == row || store.dest(end) != store.dest(end - 1)) {
+          numRoutes++;
+        }
+        end++;
+      }
+      int[] dests = new int[numRoutes];
+      int[] starts = new int[numRoutes + 1];
+      int route = -1;
+      for (int r = row; r < end; r++) {
+        if (r == row || store.dest(r) != store.dest(r - 1)) {
+          route++;
+          dests[route] = store.dest(r);
+          starts[route] = r;
+        }
+      }
+      starts[numRoutes] = end;
+      destinations[day][origin] = dests;
+      routeStarts[day][origin] = starts;
+      row = end;
+    }
+  }
+
+  /**
+   * Returns the process-wide index, loading it on first use. The flights come from the snapshot
+   * named by the flightapp.flight_snapshot setting when it is set and still current, and from
+   * the database otherwise.
+   *
+   * @return null if the index is disabled with the flightapp.search_index setting
+   */
+  public static FlightIndex getInstance() throws SQLException, IOException {
+    FlightIndex index = instance;
+    if (index == null) {
+      if (!DBConnUtils.getBooleanProperty(ENABLED_PROPERTY, true)) {
+        return null;
+      }
+      synchronized (FlightIndex.class) {
+        index = instance;
+        if (index == null) {
+          Connection conn = DBConnUtils.openConnection();
+          try {
+            String snapshot = DBConnUtils.getProperty(SNAPSHOT_PROPERTY, null);
+            if (snapshot != null) {
+              index = new FlightIndex(FlightSnapshot.open(Paths.get(snapshot), conn));
+            } else {
+              index = new FlightIndex(FlightStore.load(conn));
+            }
+          } finally {
+            conn.close();
+          }
+          int parallelism = DBConnUtils.getIntProperty(PARALLELISM_PROPERTY, 0);
+          if (parallelism > 0) {
+            index.setSearchPool(new ForkJoinPool(parallelism),
+                    DBConnUtils.getIntProperty(MIN_PARALLEL_CONNECTIONS_PROPERTY, 64));
+          }
+          instance = index;
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Builds an index over the given non-canceled flights
+   */
+  static FlightIndex of(Collection<Query.Flight> flights) {
+    FlightStore.Builder builder = new FlightStore.Builder();
+    for (Query.Flight flight : flights) {
+      builder.add(flight);
+    }
+    return new FlightIndex(builder.build());
+  }
+
+  /**
+   * The flights this index covers
+   */
+  public FlightStore store() {
+    return store;
+  }
+
+  /**
+   * Number of non-canceled flights held by the index
+   */
+  public int size() {
+    return store.size();
+  }
+
+  /**
+   * Returns up to {@code limit} direct itineraries from the origin city to the destination city
+   * on the given day, shortest first.
+   */
+  public List<Query.Compact> directItineraries(String originCity, String destCity,
+                                               int dayOfMonth, int limit) {
+    int origin = store.cityCode(originCity);
+    int dest = store.cityCode(destCity);
+    int route = route(dayOfMonth, origin, dest);
+    if (route < 0) {
+      return Collections.emptyList();
+    }
+    int start = routeStarts[dayOfMonth][origin][route];
+    // Bounded by the route's size before adding, since start + limit could overflow
+    int end = start + Math.max(0, Math.min(limit, routeStarts[dayOfMonth][origin][route + 1]
+            - start));
+    List<Query.Compact> itineraries = new ArrayList<>(end - start);
+    for (int row = start; row < end; row++) {
+      itineraries.add(new Query.Compact(store, new int[] {row}, store.time(row)));
+    }
+    return itineraries;
+  }
+
+  /**
+   * Returns up to {@code limit} one-stop itineraries from the origin city to the destination city
+   * on the given day, ordered by total flight time and then by the fids of both legs.
+   *
+   * When a search pool is configured and the origin has at least minParallelConnections
+   * outgoing routes that day, the connecting cities are split into partitions that are searched
+   * in parallel and their best itineraries merged. The result is the same either way.
+   */
+  public List<Query.Compact> oneStopItineraries(String originCity, String destCity,
+                                                int dayOfMonth, int limit) {
+    int origin = store.cityCode(originCity);
+    int dest = store.cityCode(destCity);
+    if (limit <= 0 || origin < 0 || dest < 0) {
+      return Collections.emptyList();
+    }
+    int numConnections = destinations(dayOfMonth, origin).length;
+    int[][] best;
+    if (searchPool != null && numConnections >= minParallelConnections) {
+      best = searchPool.invoke(new OneStopTask(dayOfMonth, origin, dest, 0, numConnections,
+              limit));
+    } else {
+      best = bestOneStops(dayOfMonth, origin, new int[] {dest}, new int[] {limit}, 0,
+              numConnections)[0];
+    }
+    return toItineraries(best);
+  }
+
+  /**
+   * Answers several one-stop searches from the same origin city on the same day with a single
+   * pass over the origin's connecting routes. Entry i of the result holds what
+   * {@code oneStopItineraries(originCity, destCities.get(i), dayOfMonth, limits[i])} returns.
+   */
+  public List<List<Query.Compact>> oneStopItineraries(String originCity, List<String> destCities,
+                                                      int dayOfMonth, int[] limits) {
+    int origin = store.cityCode(originCity);
+    int[] dests = new int[destCities.size()];
+    for (int i = 0; i < dests.length; i++) {
+      dests[i] = origin < 0 ? -1 : store.cityCode(destCities.get(i));
+    }
+    int[][][] best = bestOneStops(dayOfMonth, origin, dests, limits, 0,
+            destinations(dayOfMonth, origin).length);
+
+    List<List<Query.Compact>> itineraries = new ArrayList<>(dests.length);
+    for (int[][] found : best) {
+      itineraries.add(toItineraries(found));
+    }
+    return itineraries;
+  }
+
+  private List<Query.Compact> toItineraries(int[][] oneStops) {
+    List<Query.Compact> itineraries = new ArrayList<>(oneStops.length);
+    for (int[] itinerary : oneStops) {
+      itineraries.add(new Query.Compact(store, new int[] {itinerary[1], itinerary[2]},
+              itinerary[0]));
+    }
+    return itineraries;
+  }
+
+  /**
+   * Searches one-stop itineraries in parallel on the given pool whenever the origin has at least
+   * {@code minConnections} outgoing routes; a null pool searches sequentially.
+   */
+  void setSearchPool(ForkJoinPool pool, int minConnections) {
+    this.searchPool = pool;
+    this.minParallelConnections = Math.max(2, minConnections);
+  }
+
+  // For each destination, returns the best {duration, first row, second row} one-stop
+  //    itineraries, in order, whose first leg is one of the routes [fromRoute, toRoute) leaving
+  //    origin. A destination code below zero or a limit of zero yields no itineraries.
+  private int[][][] bestOneStops(int dayOfMonth, int origin, int[] dests, int[] limits,
+                                 int fromRoute, int toRoute) {
+    int[] firstLegDests = destinations(dayOfMonth, origin);
+    int[] firstLegStarts = routeStarts(dayOfMonth, origin);
+
+    // Bounded max-heaps holding the best itineraries seen so far; each head is the worst of them
+    Comparator<int[]> order = this::compareOneStop;
+    List<PriorityQueue<int[]>> best = new ArrayList<>(dests.length);
+    for (int limit : limits) {
+      // Grows as itineraries are found, so a huge limit costs nothing up front
+      best.add(new PriorityQueue<>(Math.max(1, Math.min(limit, 16)), order.reversed()));
+    }
+    for (int i = fromRoute; i < toRoute; i++) {
+      int connection = firstLegDests[i];
+      for (int d = 0; d < dests.length; d++) {
+        int secondRoute = route(dayOfMonth, connection, dests[d]);
+        if (secondRoute < 0 || limits[d] <= 0) {
+          continue;
+        }
+        addOneStops(best.get(d), limits[d], firstLegStarts[i], firstLegStarts[i + 1],
+                routeStarts[dayOfMonth][connection][secondRoute],
+                routeStarts[dayOfMonth][connection][secondRoute + 1]);
+      }
+    }
+
+    int[][][] sorted = new int[dests.length][][];
+    for (int d = 0; d < dests.length; d++) {
+      sorted[d] = best.get(d).toArray(new int[0][]);
+      Arrays.sort(sorted[d], order);
+    }
+    return sorted;
+  }
+
+  // Offers every pairing of a first-leg row in [firstStart, firstEnd) with a second-leg row in
+  //    [secondStart, secondEnd) to a bounded heap of the best limit itineraries
+  private void addOneStops(PriorityQueue<int[]> best, int limit, int firstStart, int firstEnd,
+                           int secondStart, int secondEnd) {
+    for (int row1 = firstStart; row1 < firstEnd; row1++) {
+      if (best.size() == limit && store.time(row1) + store.time(secondStart) > best.peek()[0]) {
+        // Both routes are ordered by time, so no later pair through this city can qualify
+        break;
+      }
+      for (int row2 = secondStart; row2 < secondEnd; row2++) {
+        int duration = store.time(row1) + store.time(row2);
+        if (best.size() < limit) {
+          best.add(new int[] {duration, row1, row2});
+        } else if (compareOneStop(duration, row1, row2, best.peek()) < 0) {
+          best.poll();
+          best.add(new int[] {duration, row1, row2});
+        } else if (duration > best.peek()[0]) {
+          break;
+        }
+      }
+    }
+  }
+
+  // Merges two ordered lists of one-stop itineraries, keeping the best limit of them
+  private int[][] mergeOneStops(int[][] first, int[][] second, int limit) {
+    int[][] merged = new int[Math.min(limit, first.length + second.length)][];
+    int i = 0;
+    int j = 0;
+    for (int k = 0; k < merged.length; k++) {
+      if (j == second.length || (i < first.length && compareOneStop(first[i], second[j]) <= 0)) {
+        merged[k] = first[i++];
+      } else {
+        merged[k] = second[j++];
+      }
+    }
+    return merged;
+  }
+
+  // Searches a range of connecting routes, splitting it in half until it is small enough
+  private class OneStopTask extends RecursiveTask<int[][]> {
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_ROUTES_PER_TASK = 8;
+
+    private final int dayOfMonth;
+    private final int origin;
+    private final int dest;
+    private final int fromRoute;
+    private final int toRoute;
+    private final int limit;
+
+    OneStopTask(int dayOfMonth, int origin, int dest, int fromRoute, int toRoute, int limit) {
+      this.dayOfMonth = dayOfMonth;
+      this.origin = origin;
+      this.dest = dest;
+      this.fromRoute = fromRoute;
+      this.toRoute = toRoute;
+      this.limit = limit;
+    }
+
+    @Override
+    protected int[][] compute() {
+      if (toRoute - fromRoute <= MIN_ROUTES_PER_TASK) {
+        return bestOneStops(dayOfMonth, origin, new int[] {dest}, new int[] {limit}, fromRoute,
+                toRoute)[0];
+      }
+      int middle = (fromRoute + toRoute) >>> 1;
+      OneStopTask left = new OneStopTask(dayOfMonth, origin, dest, fromRoute, middle, limit);
+      left.fork();
+      int[][] right = new OneStopTask(dayOfMonth, origin, dest, middle, toRoute, limit).compute();
+      return mergeOneStops(left.join(), right, limit);
+    }
+  }
+
+  // Orders one-stop itineraries the same way as "ORDER BY total_time, f1.fid, f2.fid"
+  private int compareOneStop(int[] c1, int[] c2) {
+    return compareOneStop(c1[0], c1[1], c1[2], c2);
+  }
+
+  private int compareOneStop(int duration, int row1, int row2, int[] other) {
+    if (duration != other[0]) {
+      return Integer.compare(duration, other[0]);
+    }
+    if (store.fid(row1) != store.fid(other[1])) {
+      return Integer.compare(store.fid(row1), store.fid(other[1]));
+    }
+    return Integer.compare(store.fid(row2), store.fid(other[2]));
+  }
+
+  /**
+   * Returns the destinations flown from the given origin on the given day, ascending. The
+   * returned array must not be modified.
+   */
+  int[] destinations(int dayOfMonth, int origin) {
+    if (dayOfMonth < 0 || dayOfMonth >= destinations.length || origin < 0
+        || destinations[dayOfMonth][origin] == null) {
+      return NO_ROUTES;
+    }
+    return destinations[dayOfMonth][origin];
+  }
+
+  /**
+   * Returns the first row of each route in {@link #destinations}, followed by the end of the
+   * last route. The returned array must not be modified.
+   */
+  int[] routeStarts(int dayOfMonth, int origin) {
+    if (dayOfMonth < 0 || dayOfMonth >= routeStarts.length || origin < 0
+        || routeStarts[dayOfMonth][origin] == null) {
+      return NO_ROUTE_STARTS;
+    }
+    return routeStarts[dayOfMonth][origin];
+  }
+
+  // Returns the position of the route to dest in destinations(dayOfMonth, origin), or -1
+  private int route(int dayOfMonth, int origin, int dest) {
+    if (dest < 0) {
+      return -1;
+    }
+    int route = Arrays.binarySearch(destinations(dayOfMonth, origin), dest);
+    return route < 0 ? -1 : route;
+  }
+
+  // Normalizes a city name the way the default SQL Server collation compares it
+  static String cityKey(String city) {
+    int end = city.length();
+    while (end > 0 && city.charAt(end - 1) == ' ') {
+      end--;
+    }
+    return city.substring(0, end).toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,420 @@
+package flightapp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the command language of {@link FlightService#execute} over TCP, with one session per
+ * connection.
+ *
+ * Clients send one command per line. Each response is sent as its length in UTF-8 bytes, a line
+ * break, and then the response itself, since responses span several lines. A session runs its
+ * commands one at a time, in the order they were sent, and the connection is closed after
+ * "quit".
+ *
+ * Clients may pipeline: send many commands without waiting for their responses. The server
+ * keeps reading while a session's commands run, up to flightapp.server_max_pipelined waiting
+ * commands, and hands all of a session's waiting commands to one worker, which runs them back to
+ * back and streams each response out as soon as it is ready.
+ *
+ * A single thread multiplexes every connection with a {@link Selector}, so idle connections
+ * only cost their buffers; commands run on a pool of flightapp.server_threads workers, since
+ * they block on the database. On shutdown the server stops accepting connections and reading
+ * commands, finishes the commands it has already received, sends their responses and then
+ * closes, waiting at most flightapp.server_drain_seconds.
+ */
+public class FlightServer {
+  private static final String THREADS_PROPERTY = "flightapp.server_threads";
+  private static final String MAX_LINE_PROPERTY = "flightapp.server_max_line_bytes";
+  private static final String DRAIN_PROPERTY = "flightapp.server_drain_seconds";
+  private static final String MAX_PIPELINED_PROPERTY = "flightapp.server_max_pipelined";
+  // Sessions stop starting commands while this many response bytes wait for the client to read
+  private static final int MAX_BUFFERED_OUTPUT_BYTES = 1 << 20;
+
+  /**
+   * Creates the query object behind a new session
+   */
+  @FunctionalInterface
+  public interface SessionFactory {
+    QueryAbstract open() throws SQLException, IOException;
+  }
+
+  private final ServerSocketChannel serverChannel;
+  private final Selector selector;
+  private final ExecutorService workers;
+  private final SessionFactory sessionFactory;
+  private final int maxLineBytes;
+  private final int maxPipelined;
+
+  // Commands finished by workers, handed back to the selector thread
+  private final ConcurrentLinkedQueue<Completion> completions = new ConcurrentLinkedQueue<>();
+  // Sessions of open connections; only used by the selector thread
+  private final Set<Session> sessions = new HashSet<>();
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private volatile boolean draining;
+  private volatile long drainDeadline;
+
+  public FlightServer(InetSocketAddress address, int threads, int maxLineBytes, int maxPipelined,
+                      SessionFactory sessionFactory) throws IOException {
+    this.sessionFactory = sessionFactory;
+    this.maxLineBytes = Math.max(64, maxLineBytes);
+    this.maxPipelined = Math.max(1, maxPipelined);
+    AtomicInteger threadCount = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(Math.max(1, threads), task -> {
+      Thread thread = new Thread(task, "flight-server-worker-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.selector = Selector.open();
+    this.serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(address);
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  /**
+   * Serves Query sessions on the given port until the process is stopped, draining on the way
+   * out
+   */
+  public static void serve(int port) throws IOException {
+    FlightServer server = new FlightServer(new InetSocketAddress(port),
+            DBConnUtils.getIntProperty(THREADS_PROPERTY, 32),
+            DBConnUtils.getIntProperty(MAX_LINE_PROPERTY, 65536),
+            DBConnUtils.getIntProperty(MAX_PIPELINED_PROPERTY, 128),
+            Query::new);
+    int drainSeconds = DBConnUtils.getIntProperty(DRAIN_PROPERTY, 30);
+    Runtime.getRuntime().addShutdownHook(new Thread(
+        () -> server.shutdown(drainSeconds, TimeUnit.SECONDS), "flight-server-shutdown"));
+    System.out.println("Serving flight sessions on port " + server.port());
+    server.run();
+  }
+
+  /**
+   * The port the server accepts connections on
+   */
+  public int port() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Runs the selector loop on the calling thread until the server has shut down
+   */
+  public void run() throws IOException {
+    try {
+      while (!draining || !sessions.isEmpty()) {
+        if (draining && System.nanoTime() - drainDeadline > 0) {
+          break;
+        }
+        selector.select(draining ? 100 : 0);
+        if (draining && serverChannel.isOpen()) {
+          serverChannel.close();
+          for (Session session : new HashSet<>(sessions)) {
+            session.drain();
+          }
+        }
+
+        Completion completion;
+        while ((completion = completions.poll()) != null) {
+          completion.session.finish(completion);
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Session session = (Session) key.attachment();
+          try {
+            if (key.isWritable()) {
+              session.write();
+            }
+            if (key.isValid() && key.isReadable()) {
+              session.read();
+            }
+          } catch (IOException e) {
+            session.close();
+          }
+        }
+      }
+    } finally {
+      for (Session session : new HashSet<>(sessions)) {
+        session.close();
+      }
+      // Lets sessions whose workers already finished close their queries
+      Completion completion;
+      while ((completion = completions.poll()) != null) {
+        completion.session.finish(completion);
+      }
+      serverChannel.close();
+      selector.close();
+      workers.shutdownNow();
+      stopped.countDown();
+    }
+  }
+
+  /**
+   * Stops accepting connections and reading commands, and waits for the commands already
+   * received to be answered, at most for the given time
+   */
+  public void shutdown(long timeout, TimeUnit unit) {
+    drainDeadline = System.nanoTime() + unit.toNanos(timeout);
+    draining = true;
+    selector.wakeup();
+    try {
+      stopped.await(unit.toMillis(timeout) + 1000, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    if (draining) {
+      channel.close();
+      return;
+    }
+    channel.configureBlocking(false);
+    Session session = new Session(channel);
+    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+    sessions.add(session);
+  }
+
+  // Runs a session's commands in order on a worker thread, handing back each response as soon
+  //    as it is ready. Commands after a "quit" are dropped.
+  private void execute(Session session, List<String> commands) {
+    workers.execute(() -> {
+      for (int i = 0; i < commands.size(); i++) {
+        String response;
+        try {
+          if (session.query == null) {
+            session.query = sessionFactory.open();
+          }
+          response = FlightService.execute(session.query, commands.get(i));
+        } catch (SQLException | IOException | RuntimeException e) {
+          e.printStackTrace();
+          response = "Failed to execute command\n";
+        }
+        boolean quit = response.equals("Goodbye\n");
+        completions.add(new Completion(session, response, quit, quit || i == commands.size() - 1));
+        selector.wakeup();
+        if (quit) {
+          break;
+        }
+      }
+    });
+  }
+
+  private static final class Completion {
+    private final Session session;
+    private final String response;
+    private final boolean quit;
+    // The last response of the commands handed to the worker
+    private final boolean last;
+
+    private Completion(Session session, String response, boolean quit, boolean last) {
+      this.session = session;
+      this.response = response;
+      this.quit = quit;
+      this.last = last;
+    }
+  }
+
+  // One connection. Only the selector thread touches its fields, except query, which the
+  //    worker running its current command uses.
+  private final class Session {
+    private final SocketChannel channel;
+    private SelectionKey key;
+    // Grows up to maxLineBytes as long commands arrive, so idle connections stay small
+    private ByteBuffer input = ByteBuffer.allocate(Math.min(1024, maxLineBytes));
+    // Complete commands waiting for a worker
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+    private int outputBytes;
+    private volatile QueryAbstract query;
+    // Commands are running on a worker
+    private boolean busy;
+    // The client sent "quit", or a command too long to read
+    private boolean quit;
+    // The client closed its side of the connection
+    private boolean eof;
+    // The connection is closed; the query is closed too once no worker uses it
+    private boolean closed;
+
+    private Session(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    private void read() throws IOException {
+      if (!input.hasRemaining() && input.capacity() < maxLineBytes) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.min(input.capacity() * 2, maxLineBytes));
+        input.flip();
+        input = larger.put(input);
+      }
+      if (channel.read(input) < 0) {
+        eof = true;
+      }
+      next();
+    }
+
+    // Hands the waiting commands to a worker if none is running, closes the connection once
+    //    there is nothing left to do, and updates what the selector waits for
+    private void next() {
+      while (!quit && pending.size() < maxPipelined) {
+        String command = takeLine();
+        if (command == null) {
+          break;
+        }
+        pending.add(command);
+      }
+      if (!quit && pending.isEmpty() && !input.hasRemaining()
+          && input.capacity() == maxLineBytes) {
+        respond("Error: command longer than " + maxLineBytes + " bytes\n");
+        quit = true;
+      }
+      if (!busy && !quit && !pending.isEmpty() && outputBytes < MAX_BUFFERED_OUTPUT_BYTES) {
+        busy = true;
+        execute(this, new ArrayList<>(pending));
+        pending.clear();
+      }
+      if (!busy && output.isEmpty()
+          && (quit || (pending.isEmpty() && (eof || draining)))) {
+        close();
+        return;
+      }
+      int ops = 0;
+      if (!output.isEmpty()) {
+        ops |= SelectionKey.OP_WRITE;
+      }
+      // Reading pauses while enough commands wait, so a client that pipelines faster than its
+      //    commands run is slowed down instead of filling memory
+      if (!quit && !eof && !draining && pending.size() < maxPipelined
+          && (input.hasRemaining() || input.capacity() < maxLineBytes)) {
+        ops |= SelectionKey.OP_READ;
+      }
+      key.interestOps(ops);
+    }
+
+    // Removes and returns the first complete line of the input, without its line break
+    private String takeLine() {
+      for (int i = 0; i < input.position(); i++) {
+        if (input.get(i) == '\n') {
+          int end = i > 0 && input.get(i - 1) == '\r' ? i - 1 : i;
+          String line = new String(input.array(), 0, end, StandardCharsets.UTF_8);
+          input.flip();
+          input.position(i + 1);
+          input.compact();
+          return line;
+        }
+      }
+      return null;
+    }
+
+    private void finish(Completion completion) {
+      if (completion.last) {
+        busy = false;
+      }
+      if (closed) {
+        if (!busy) {
+          closeQuery();
+        }
+        return;
+      }
+      respond(completion.response);
+      if (completion.quit) {
+        quit = true;
+        pending.clear();
+      }
+      if (key.isValid()) {
+        next();
+      }
+    }
+
+    private void respond(String response) {
+      byte[] body = response.getBytes(StandardCharsets.UTF_8);
+      byte[] header = (body.length + "\n").getBytes(StandardCharsets.US_ASCII);
+      ByteBuffer frame = ByteBuffer.allocate(header.length + body.length);
+      frame.put(header).put(body).flip();
+      output.add(frame);
+      outputBytes += frame.remaining();
+    }
+
+    private void write() throws IOException {
+      while (!output.isEmpty()) {
+        ByteBuffer frame = output.peek();
+        channel.write(frame);
+        if (frame.hasRemaining()) {
+          return;
+        }
+        output.poll();
+        outputBytes -= frame.limit();
+      }
+      next();
+    }
+
+    // Stops reading; commands already received still run
+    private void drain() {
+      if (key.isValid()) {
+        next();
+      }
+    }
+
+    // Closes the connection, and the query unless a worker still runs commands on it, in
+    //    which case finish closes it after their last response
+    private void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      sessions.remove(this);
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Closing anyway
+      }
+      if (!busy) {
+        closeQuery();
+      }
+    }
+
+    private void closeQuery() {
+      QueryAbstract q = query;
+      if (q != null) {
+        query = null;
+        try {
+          q.closeConnection();
+        } catch (SQLException e) {
+          // The pooled connection is discarded
+        }
+      }
+    }
+  }
+}
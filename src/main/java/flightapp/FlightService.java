@@ -1,111 +1,178 @@
 package flightapp;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.regex.*;
 import java.sql.*;
 
 public class FlightService {
 
+  // Reused for every command a thread executes
+  private static final ThreadLocal<CommandParser> PARSERS =
+      ThreadLocal.withInitial(CommandParser::new);
+
+  private interface Command {
+    String run(QueryAbstract q, CommandParser tokens);
+  }
+
+  private static final CommandParser.Table<Command> COMMANDS = new CommandParser.Table<>(16);
+
+  static {
+    COMMANDS.put("login", FlightService::login);
+    COMMANDS.put("token", (q, tokens) -> q.sessionToken());
+    COMMANDS.put("login-token", FlightService::loginToken);
+    COMMANDS.put("revoke-tokens", (q, tokens) -> q.revokeSessionTokens());
+    COMMANDS.put("create", FlightService::create);
+    COMMANDS.put("search", FlightService::search);
+    COMMANDS.put("searchbatch", FlightService::searchBatch);
+    COMMANDS.put("book", FlightService::book);
+    COMMANDS.put("reservations", (q, tokens) -> q.reservations());
+    COMMANDS.put("pay", FlightService::pay);
+    COMMANDS.put("quit", (q, tokens) -> "Goodbye\n");
+  }
+
   /**
    * Execute the specified command on the database query connection
    */
   public static String execute(QueryAbstract q, String command) {
-    String[] tokens = tokenize(command.trim());
-    String response;
+    CommandParser tokens = PARSERS.get().parse(command.trim());
 
     // empty input
-    if (tokens.length == 0) {
-      response = "Please enter a command";
+    if (tokens.size() == 0) {
+      return "Please enter a command";
     }
 
-    // login
-    else if (tokens[0].equals("login")) {
-      if (tokens.length == 3) {
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.login(username, password);
-      } else {
-        response = "Error: Please provide a username and password";
-      }
+    Command handler = COMMANDS.get(tokens, 0);
+    // unknown command
+    if (handler == null) {
+      return "Error: unrecognized command '" + tokens.token(0) + "'";
     }
+    return handler.run(q, tokens);
+  }
 
-    // create
-    else if (tokens[0].equals("create")) {
-      if (tokens.length == 4) {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.createCustomer(username, password, initAmount);
-      } else {
-        response = "Error: Please provide a username, password, and initial amount in the account";
-      }
+  // login
+  private static String login(QueryAbstract q, CommandParser tokens) {
+    if (tokens.size() == 3) {
+      String username = tokens.token(1);
+      String password = tokens.token(2);
+      return q.login(username, password);
     }
+    return "Error: Please provide a username and password";
+  }
 
-    // search
-    else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        try {
-          int day = Integer.valueOf(tokens[4]);
-          int count = Integer.valueOf(tokens[5]);
-          response = q.search(originCity, destinationCity, direct, day, count);
-        } catch (NumberFormatException e) {
-          response = "Failed to parse integer";
-        }
-      } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
-      }
+  // login-token
+  private static String loginToken(QueryAbstract q, CommandParser tokens) {
+    if (tokens.size() == 2) {
+      return q.loginWithToken(tokens.token(1));
     }
+    return "Error: Please provide a session token";
+  }
 
-    // book
-    else if (tokens[0].equals("book")) {
-      if (tokens.length == 2) {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        response = q.book(itinerary_id);
-      } else {
-        response = "Error: Please provide an itinerary_id";
-      }
+  // create
+  private static String create(QueryAbstract q, CommandParser tokens) {
+    if (tokens.size() == 4) {
+      String username = tokens.token(1);
+      String password = tokens.token(2);
+      int initAmount = tokens.intToken(3);
+      return q.createCustomer(username, password, initAmount);
     }
+    return "Error: Please provide a username, password, and initial amount in the account";
+  }
 
-    // reservations
-    else if (tokens[0].equals("reservations")) {
-      response = q.reservations();
+  // search
+  private static String search(QueryAbstract q, CommandParser tokens) {
+    if (tokens.size() == 6) {
+      String originCity = tokens.token(1);
+      String destinationCity = tokens.token(2);
+      boolean direct = tokens.tokenEquals(3, "1");
+      try {
+        int day = tokens.intToken(4);
+        int count = tokens.intToken(5);
+        return q.search(originCity, destinationCity, direct, day, count);
+      } catch (NumberFormatException e) {
+        return "Failed to parse integer";
+      }
     }
+    return "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+  }
 
-    // pay
-    else if (tokens[0].equals("pay")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.pay(reservation_id);
-      } else {
-        response = "Error: Please provide a reservation_id";
+  // searchbatch
+  private static String searchBatch(QueryAbstract q, CommandParser tokens) {
+    if (tokens.size() > 1 && (tokens.size() - 1) % 5 == 0) {
+      try {
+        List<QueryAbstract.SearchRequest> requests = new ArrayList<>();
+        for (int i = 1; i < tokens.size(); i += 5) {
+          requests.add(new QueryAbstract.SearchRequest(tokens.token(i), tokens.token(i + 1),
+              tokens.tokenEquals(i + 2, "1"), tokens.intToken(i + 3), tokens.intToken(i + 4)));
+        }
+        StringBuilder sb = new StringBuilder();
+        List<String> results = q.searchBatch(requests);
+        for (int i = 0; i < results.size(); i++) {
+          sb.append("Search ").append(i).append(":\n").append(results.get(i));
+        }
+        return sb.toString();
+      } catch (NumberFormatException e) {
+        return "Failed to parse integer";
       }
     }
+    return "Error: Please provide one or more groups of search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+  }
 
-    // quit
-    else if (tokens[0].equals("quit")) {
-      response = "Goodbye\n";
+  // book
+  private static String book(QueryAbstract q, CommandParser tokens) {
+    if (tokens.size() == 2) {
+      int itinerary_id = tokens.intToken(1);
+      return q.book(itinerary_id);
     }
+    return "Error: Please provide an itinerary_id";
+  }
 
-    // unknown command
-    else {
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+  // pay
+  private static String pay(QueryAbstract q, CommandParser tokens) {
+    if (tokens.size() == 2) {
+      int reservation_id = tokens.intToken(1);
+      return q.pay(reservation_id);
     }
-
-    return response;
+    return "Error: Please provide a reservation_id";
   }
 
   /**
    * Establishes an application-to-database connection and runs the Flights
-   * application REPL
+   * application REPL.  Run with "export-snapshot <file>" to write a snapshot
+   * of the FLIGHTS table instead, with "build-one-stop-table <k>" to
+   * precompute the best k one-stop itineraries of every route, or with
+   * "server <port>" to serve sessions over TCP (see {@link FlightServer}).
    * 
    * @param args
    * @throws IOException
    */
   public static void main(String[] args) throws IOException, SQLException {
+    if (args.length == 2 && args[0].equals("export-snapshot")) {
+      Connection conn = DBConnUtils.openConnection();
+      try {
+        FlightSnapshot.export(conn, Paths.get(args[1]));
+      } finally {
+        conn.close();
+      }
+      System.out.println("Wrote flight snapshot to " + args[1]);
+      return;
+    }
+    if (args.length == 2 && args[0].equals("build-one-stop-table")) {
+      Connection conn = DBConnUtils.openConnection();
+      try {
+        OneStopTable.build(conn, Integer.parseInt(args[1]));
+      } finally {
+        conn.close();
+      }
+      System.out.println("Built the one-stop table with " + args[1] + " itineraries per route");
+      return;
+    }
+
+    if (args.length == 2 && args[0].equals("server")) {
+      FlightServer.serve(Integer.parseInt(args[1]));
+      return;
+    }
+
     QueryAbstract q = new Query();
     menu(q);
     q.closeConnection();
@@ -125,7 +192,11 @@ public class FlightService {
       System.out.println(" *** Please enter one of the following commands *** ");
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
+      System.out.println("> token");
+      System.out.println("> login-token <session token>");
+      System.out.println("> revoke-tokens");
       System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+      System.out.println("> searchbatch <origin city> <destination city> <direct> <day of the month> <num itineraries> ...");
       System.out.println("> book <itinerary id>");
       System.out.println("> pay <reservation id>");
       System.out.println("> reservations");
@@ -144,20 +215,4 @@ public class FlightService {
       }
     }
   }
-
-  /**
-   * Tokenize a string into a string array
-   */
-  private static String[] tokenize(String command) {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find()) {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
-    }
-    return tokens.toArray(new String[0]);
-  }
 }
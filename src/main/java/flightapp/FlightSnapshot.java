@@ -0,0 +1,231 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of a {@link FlightStore}, so a new process can skip reading FLIGHTS over JDBC.
+ *
+ * Layout, big-endian:
+ *
+ *   int magic, int version, long source fingerprint, int rows, int cities, int carriers,
+ *   city names, carrier names (each an int byte length followed by UTF-8 bytes),
+ *   nine int columns of {@code rows} entries in FlightStore order, the rows ordered by fid,
+ *   long CRC32 of everything before it.
+ *
+ * The source fingerprint summarizes the FLIGHTS table when the snapshot was taken. A snapshot
+ * whose fingerprint no longer matches the table, or whose checksum does not match its contents,
+ * is ignored and rewritten.
+ *
+ * Reading a snapshot maps the file and bulk-copies each column into an int array, since the
+ * search loops read the columns far more often than they are loaded.
+ */
+public class FlightSnapshot {
+  private static final int MAGIC = 0x464C5453; // "FLTS"
+  private static final int VERSION = 1;
+  private static final int NUM_COLUMNS = 9;
+
+  private static final String FINGERPRINT_SQL =
+          "SELECT COUNT_BIG(*) AS num_rows, CHECKSUM_AGG(BINARY_CHECKSUM(*)) AS checksum FROM FLIGHTS";
+
+  private final long fingerprint;
+  private final FlightStore store;
+
+  private FlightSnapshot(long fingerprint, FlightStore store) {
+    this.fingerprint = fingerprint;
+    this.store = store;
+  }
+
+  public long fingerprint() {
+    return fingerprint;
+  }
+
+  public FlightStore store() {
+    return store;
+  }
+
+  /**
+   * Summarizes the current contents of the FLIGHTS table. Only one row comes back, but the
+   * server scans the whole table to compute it, so this should not be called on hot paths.
+   */
+  public static long fingerprint(Connection conn) throws SQLException {
+    try (Statement statement = conn.createStatement();
+         ResultSet results = statement.executeQuery(FINGERPRINT_SQL)) {
+      results.next();
+      return (results.getLong("num_rows") << 32) ^ (results.getInt("checksum") & 0xFFFFFFFFL);
+    }
+  }
+
+  /**
+   * Returns the flights in the snapshot at the given path if it is intact and matches the
+   * FLIGHTS table; otherwise reads FLIGHTS and replaces the snapshot.
+   */
+  public static FlightStore open(Path path, Connection conn) throws SQLException, IOException {
+    long fingerprint = fingerprint(conn);
+    if (Files.exists(path)) {
+      try {
+        FlightSnapshot snapshot = read(path);
+        if (snapshot.fingerprint() == fingerprint) {
+          return snapshot.store();
+        }
+        System.err.println("Flight snapshot " + path + " is out of date, rebuilding it");
+      } catch (IOException e) {
+        System.err.println("Ignoring unreadable flight snapshot " + path + ": " + e.getMessage());
+      }
+    }
+    FlightStore store = FlightStore.load(conn);
+    write(store, fingerprint, path);
+    return store;
+  }
+
+  /**
+   * Reads FLIGHTS and writes a fresh snapshot of it to the given path
+   */
+  public static void export(Connection conn, Path path) throws SQLException, IOException {
+    long fingerprint = fingerprint(conn);
+    write(FlightStore.load(conn), fingerprint, path);
+  }
+
+  /**
+   * Maps and validates the snapshot at the given path, and copies its columns to the heap
+   *
+   * @throws IOException if the file is not a snapshot of this version or is corrupt
+   */
+  public static FlightSnapshot read(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < 32 || size > Integer.MAX_VALUE) {
+        throw new IOException("Not a flight snapshot");
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+      int bodyLength = (int) size - Long.BYTES;
+      CRC32 crc = new CRC32();
+      ByteBuffer body = buffer.duplicate();
+      body.limit(bodyLength);
+      crc.update(body);
+      if (crc.getValue() != buffer.getLong(bodyLength)) {
+        throw new IOException("Checksum mismatch");
+      }
+
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a flight snapshot");
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported snapshot version " + version);
+      }
+      long fingerprint = buffer.getLong();
+      int rows = buffer.getInt();
+      String[] cityNames = new String[buffer.getInt()];
+      String[] carrierNames = new String[buffer.getInt()];
+      readStrings(buffer, cityNames);
+      readStrings(buffer, carrierNames);
+
+      IntBuffer ints = buffer.slice().asIntBuffer();
+      int[][] columns = new int[NUM_COLUMNS][rows];
+      for (int[] column : columns) {
+        ints.get(column);
+      }
+      int[] rowsByFid = new int[rows];
+      ints.get(rowsByFid);
+      return new FlightSnapshot(fingerprint,
+              new FlightStore(columns, rowsByFid, cityNames, carrierNames));
+    } catch (RuntimeException e) {
+      // Truncated or malformed contents that still passed the checksum
+      throw new IOException("Malformed flight snapshot", e);
+    }
+  }
+
+  /**
+   * Writes a snapshot of the given flights, replacing any file at the given path atomically
+   */
+  public static void write(FlightStore store, long fingerprint, Path path) throws IOException {
+    byte[][] cityNames = encode(store.cityNames());
+    byte[][] carrierNames = encode(store.carrierNames());
+    long size = 4 + 4 + 8 + 4 + 4 + 4 + encodedLength(cityNames) + encodedLength(carrierNames)
+        + (long) (NUM_COLUMNS + 1) * store.size() * Integer.BYTES + Long.BYTES;
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Flight catalogue too large for a snapshot");
+    }
+
+    Path parent = path.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ,
+              StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(fingerprint);
+        buffer.putInt(store.size());
+        buffer.putInt(cityNames.length);
+        buffer.putInt(carrierNames.length);
+        writeStrings(buffer, cityNames);
+        writeStrings(buffer, carrierNames);
+
+        IntBuffer ints = buffer.slice().asIntBuffer();
+        for (int[] column : store.columns()) {
+          ints.put(column);
+        }
+        ints.put(store.rowsByFid());
+        buffer.position(buffer.position() + ints.position() * Integer.BYTES);
+
+        int bodyLength = buffer.position();
+        CRC32 crc = new CRC32();
+        ByteBuffer body = buffer.duplicate();
+        body.position(0).limit(bodyLength);
+        crc.update(body);
+        buffer.putLong(crc.getValue());
+        buffer.force();
+      }
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static byte[][] encode(String[] strings) {
+    byte[][] encoded = new byte[strings.length][];
+    for (int i = 0; i < strings.length; i++) {
+      encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+    }
+    return encoded;
+  }
+
+  private static long encodedLength(byte[][] strings) {
+    long length = 0;
+    for (byte[] string : strings) {
+      length += Integer.BYTES + string.length;
+    }
+    return length;
+  }
+
+  private static void writeStrings(ByteBuffer buffer, byte[][] strings) {
+    for (byte[] string : strings) {
+      buffer.putInt(string.length);
+      buffer.put(string);
+    }
+  }
+
+  private static void readStrings(ByteBuffer buffer, String[] strings) {
+    for (int i = 0; i < strings.length; i++) {
+      byte[] bytes = new byte[buffer.getInt()];
+      buffer.get(bytes);
+      strings[i] = new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,289 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+/**
+ * Columnar, read-only copy of the non-canceled rows of the FLIGHTS table.
+ *
+ * Every column is a primitive array indexed by row number, and city and carrier names are
+ * dictionary-encoded as ints, so the whole catalogue costs a few dozen bytes per flight.
+ * Rows are ordered by day of month, origin city code, destination city code, actual_time and
+ * fid, which makes every route a contiguous range of rows. {@code Query.Flight} objects are only
+ * created on request, when an itinerary is printed.
+ */
+public class FlightStore {
+  private static final String LOAD_FLIGHTS_SQL =
+          "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price " +
+                  "FROM FLIGHTS WHERE canceled = 0";
+
+  // Columns, one entry per row
+  private final int[] fids;
+  private final int[] days;
+  private final int[] carriers;
+  private final int[] flightNums;
+  private final int[] origins;
+  private final int[] dests;
+  private final int[] times;
+  private final int[] capacities;
+  private final int[] prices;
+
+  // Dictionaries
+  private final String[] cityNames;
+  private final String[] carrierNames;
+  private final Map<String, Integer> cityCodes;
+
+  // Rows ordered by fid, for point lookups
+  private final int[] rowsByFid;
+
+  /**
+   * Wraps columns that are already in route order.
+   *
+   * @param columns   fid, day, carrier, flight number, origin, destination, time, capacity and
+   *                  price columns, in that order
+   * @param rowsByFid rows ordered by fid, or null to compute them
+   */
+  FlightStore(int[][] columns, int[] rowsByFid, String[] cityNames, String[] carrierNames) {
+    int[] fids = columns[0];
+    this.fids = fids;
+    this.days = columns[1];
+    this.carriers = columns[2];
+    this.flightNums = columns[3];
+    this.origins = columns[4];
+    this.dests = columns[5];
+    this.times = columns[6];
+    this.capacities = columns[7];
+    this.prices = columns[8];
+    this.cityNames = cityNames;
+    this.carrierNames = carrierNames;
+
+    this.cityCodes = new HashMap<>();
+    for (int code = 0; code < cityNames.length; code++) {
+      cityCodes.put(FlightIndex.cityKey(cityNames[code]), code);
+    }
+    if (rowsByFid == null) {
+      rowsByFid = sortedRows((r1, r2) -> Integer.compare(fids[r1], fids[r2]), fids.length);
+    }
+    this.rowsByFid = rowsByFid;
+  }
+
+  // The columns in the order the array constructor takes them
+  int[][] columns() {
+    return new int[][] {fids, days, carriers, flightNums, origins, dests, times, capacities, prices};
+  }
+
+  int[] rowsByFid() {
+    return rowsByFid;
+  }
+
+  String[] cityNames() {
+    return cityNames;
+  }
+
+  String[] carrierNames() {
+    return carrierNames;
+  }
+
+  /**
+   * Reads every non-canceled flight over the given connection
+   */
+  static FlightStore load(Connection conn) throws SQLException {
+    Builder builder = new Builder();
+    try (Statement statement = conn.createStatement();
+         ResultSet results = statement.executeQuery(LOAD_FLIGHTS_SQL)) {
+      while (results.next()) {
+        builder.add(results.getInt("fid"), results.getInt("day_of_month"),
+                results.getString("carrier_id"), results.getInt("flight_num"),
+                results.getString("origin_city"), results.getString("dest_city"),
+                results.getInt("actual_time"), results.getInt("capacity"),
+                results.getInt("price"));
+      }
+    }
+    return builder.build();
+  }
+
+  public int size() {
+    return fids.length;
+  }
+
+  public int numCities() {
+    return cityNames.length;
+  }
+
+  /**
+   * Returns the code of the given city, or -1 if no flight serves it. Names are compared the way
+   * {@link FlightIndex#cityKey} normalizes them.
+   */
+  public int cityCode(String cityName) {
+    Integer code = cityCodes.get(FlightIndex.cityKey(cityName));
+    return code == null ? -1 : code;
+  }
+
+  /**
+   * Returns the row holding the given flight, or -1 if it is not in the store
+   */
+  public int rowOf(int fid) {
+    int low = 0;
+    int high = rowsByFid.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midFid = fids[rowsByFid[mid]];
+      if (midFid < fid) {
+        low = mid + 1;
+      } else if (midFid > fid) {
+        high = mid - 1;
+      } else {
+        return rowsByFid[mid];
+      }
+    }
+    return -1;
+  }
+
+  public int fid(int row) {
+    return fids[row];
+  }
+
+  public int day(int row) {
+    return days[row];
+  }
+
+  public String carrierName(int row) {
+    return carrierNames[carriers[row]];
+  }
+
+  public int flightNum(int row) {
+    return flightNums[row];
+  }
+
+  public String originName(int row) {
+    return cityNames[origins[row]];
+  }
+
+  public String destName(int row) {
+    return cityNames[dests[row]];
+  }
+
+  public int origin(int row) {
+    return origins[row];
+  }
+
+  public int dest(int row) {
+    return dests[row];
+  }
+
+  public int time(int row) {
+    return times[row];
+  }
+
+  public int capacity(int row) {
+    return capacities[row];
+  }
+
+  public int price(int row) {
+    return prices[row];
+  }
+
+  /**
+   * Materializes the flight stored in the given row
+   */
+  public Query.Flight flight(int row) {
+    return new Query.Flight(fids[row], days[row], carrierNames[carriers[row]],
+            Integer.toString(flightNums[row]), cityNames[origins[row]], cityNames[dests[row]],
+            times[row], capacities[row], prices[row]);
+  }
+
+  private static int[] sortedRows(Comparator<Integer> order, int size) {
+    Integer[] rows = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      rows[i] = i;
+    }
+    Arrays.sort(rows, order);
+    int[] sorted = new int[size];
+    for (int i = 0; i < size; i++) {
+      sorted[i] = rows[i];
+    }
+    return sorted;
+  }
+
+  /**
+   * Accumulates flights in any order and lays them out in route order
+   */
+  static class Builder {
+    private final Map<String, Integer> cityCodes = new HashMap<>();
+    private final List<String> cityNames = new ArrayList<>();
+    private final Map<String, Integer> carrierCodes = new HashMap<>();
+    private final List<String> carrierNames = new ArrayList<>();
+    private int size;
+    private int[][] columns = new int[9][1024];
+
+    Builder add(int fid, int day, String carrier, int flightNum, String origin, String dest,
+                int time, int capacity, int price) {
+      if (size == columns[0].length) {
+        for (int c = 0; c < columns.length; c++) {
+          columns[c] = Arrays.copyOf(columns[c], size * 2);
+        }
+      }
+      int[] row = {fid, day, encode(carrierCodes, carrierNames, carrier, carrier), flightNum,
+                   encode(cityCodes, cityNames, FlightIndex.cityKey(origin), origin),
+                   encode(cityCodes, cityNames, FlightIndex.cityKey(dest), dest),
+                   time, capacity, price};
+      for (int c = 0; c < columns.length; c++) {
+        columns[c][size] = row[c];
+      }
+      size++;
+      return this;
+    }
+
+    Builder add(Query.Flight flight) {
+      return add(flight.fid, flight.dayOfMonth, flight.carrierId,
+              Integer.parseInt(flight.flightNum), flight.originCity, flight.destCity,
+              flight.time, flight.capacity, flight.price);
+    }
+
+    private static int encode(Map<String, Integer> codes, List<String> names, String key,
+                              String name) {
+      Integer code = codes.get(key);
+      if (code == null) {
+        code = names.size();
+        codes.put(key, code);
+        names.add(name);
+      }
+      return code;
+    }
+
+    FlightStore build() {
+      final int[] fid = columns[0];
+      final int[] day = columns[1];
+      final int[] origin = columns[4];
+      final int[] dest = columns[5];
+      final int[] time = columns[6];
+      int[] order = sortedRows((r1, r2) -> {
+        if (day[r1] != day[r2]) {
+          return Integer.compare(day[r1], day[r2]);
+        }
+        if (origin[r1] != origin[r2]) {
+          return Integer.compare(origin[r1], origin[r2]);
+        }
+        if (dest[r1] != dest[r2]) {
+          return Integer.compare(dest[r1], dest[r2]);
+        }
+        if (time[r1] != time[r2]) {
+          return Integer.compare(time[r1], time[r2]);
+        }
+        return Integer.compare(fid[r1], fid[r2]);
+      }, size);
+
+      int[][] sorted = new int[columns.length][size];
+      for (int c = 0; c < columns.length; c++) {
+        for (int i = 0; i < size; i++) {
+          sorted[c][i] = columns[c][order[i]];
+        }
+      }
+      return new FlightStore(sorted, null, cityNames.toArray(new String[0]),
+              carrierNames.toArray(new String[0]));
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package flightapp;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs password hashing on its own bounded pool of threads, shared by every session.
+ *
+ * Hashing a password takes tens of milliseconds of CPU, so a burst of logins run on the session
+ * threads would hold them all while searches and bookings wait. Here at most
+ * flightapp.hash_threads hashes run at once, at most flightapp.hash_queue_size more wait for a
+ * thread, and a caller gives up after flightapp.hash_timeout_ms. Requests beyond those limits
+ * fail quickly instead of piling up.
+ */
+public class HashingService {
+  private static final String THREADS_PROPERTY = "flightapp.hash_threads";
+  private static final String QUEUE_SIZE_PROPERTY = "flightapp.hash_queue_size";
+  private static final String TIMEOUT_PROPERTY = "flightapp.hash_timeout_ms";
+
+  private static volatile HashingService instance;
+
+  private final ThreadPoolExecutor executor;
+  private final long timeoutMillis;
+
+  HashingService(int threads, int queueSize, long timeoutMillis) {
+    threads = Math.max(1, threads);
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, queueSize)), task -> {
+              Thread thread = new Thread(task, "password-hasher-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Returns the process-wide service, creating it on first use. By default it has half as many
+   * threads as there are processors.
+   */
+  public static HashingService getInstance() throws IOException {
+    HashingService service = instance;
+    if (service == null) {
+      synchronized (HashingService.class) {
+        service = instance;
+        if (service == null) {
+          int processors = Runtime.getRuntime().availableProcessors();
+          service = new HashingService(
+                  DBConnUtils.getIntProperty(THREADS_PROPERTY, Math.max(1, processors / 2)),
+                  DBConnUtils.getIntProperty(QUEUE_SIZE_PROPERTY, 64),
+                  DBConnUtils.getIntProperty(TIMEOUT_PROPERTY, 10000));
+          instance = service;
+        }
+      }
+    }
+    return service;
+  }
+
+  /**
+   * Salts and hashes a password for storage
+   *
+   * @throws TimeoutException if the service is saturated or the hash is not ready in time
+   */
+  public byte[] hash(String password) throws TimeoutException {
+    return run(() -> PasswordUtils.saltAndHashPassword(password));
+  }
+
+  /**
+   * Checks a password against a stored salted hash
+   *
+   * @throws TimeoutException if the service is saturated or the check is not done in time
+   */
+  public boolean matches(String password, byte[] saltedHash) throws TimeoutException {
+    return run(() -> PasswordUtils.plaintextMatchesSaltedHash(password, saltedHash));
+  }
+
+  private <T> T run(Callable<T> task) throws TimeoutException {
+    Future<T> result;
+    try {
+      result = executor.submit(task);
+    } catch (RejectedExecutionException e) {
+      throw new TimeoutException("Too many passwords waiting to be hashed");
+    }
+    try {
+      return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // Drops the task if it has not started yet
+      result.cancel(false);
+      executor.purge();
+      throw e;
+    } catch (InterruptedException e) {
+      result.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new TimeoutException("Interrupted waiting for a password hash");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out reservation and itinerary IDs from counter rows in Counters_ckirby03, so bookings no
+ * longer scan the tail of the Reservations and Itineraries tables for their maximum ID.
+ *
+ * Reservation IDs must start at 1 and grow by 1 with no gaps, so each one is taken from its
+ * counter inside the booking transaction and given back if the booking rolls back. Itinerary IDs
+ * only need to be unique, so each process reserves them from their counter in blocks of
+ * flightapp.itinerary_id_block_size (hi/lo style) and hands them out with a compare-and-set,
+ * without locks or database round trips. The next block is fetched once half of the current
+ * one is used, so bookings rarely wait for one. IDs left in a block when the process exits are
+ * never used.
+ *
+ * Clearing the tables only restarts the reservation counter. The itinerary counter keeps
+ * growing, so blocks other processes still hold never collide with IDs handed out afterwards.
+ * A counter row that is missing, e.g. because Counters_ckirby03 was recreated, is created just
+ * above the largest ID already in its table.
+ */
+public class IdAllocator {
+  static final String RESERVATION_IDS = "rid";
+  static final String ITINERARY_IDS = "itid";
+
+  private static final String BLOCK_SIZE_PROPERTY = "flightapp.itinerary_id_block_size";
+
+  static final String TAKE_IDS_SQL =
+          "UPDATE Counters_ckirby03 SET next_value = next_value + ? OUTPUT deleted.next_value " +
+                  "WHERE name = ?";
+  private static final String RESTART_RESERVATION_IDS_SQL =
+          "UPDATE Counters_ckirby03 SET next_value = 1 WHERE name = '" + RESERVATION_IDS + "'";
+  // Create a counter just above the largest ID in its table
+  private static final String CREATE_RESERVATION_COUNTER_SQL =
+          "INSERT INTO Counters_ckirby03 SELECT '" + RESERVATION_IDS + "', " +
+                  "ISNULL(MAX(rid), 0) + 1 FROM Reservations_ckirby03";
+  private static final String CREATE_ITINERARY_COUNTER_SQL =
+          "INSERT INTO Counters_ckirby03 SELECT '" + ITINERARY_IDS + "', " +
+                  "ISNULL(MAX(itid), 0) + 1 FROM Itineraries_ckirby03";
+
+  private static volatile IdAllocator instance;
+
+  private final int blockSize;
+  // The unused itinerary IDs [next, end) of the current block, packed as next << 32 | end
+  private final AtomicLong block = new AtomicLong();
+  // The block fetched ahead of time, packed the same way, or 0 if there is none
+  private final AtomicLong spare = new AtomicLong();
+  // Held while a block is fetched, so only one caller fetches at a time
+  private final ReentrantLock fetching = new ReentrantLock();
+
+  IdAllocator(int blockSize) {
+    this.blockSize = Math.max(1, blockSize);
+  }
+
+  /**
+   * Returns the process-wide allocator, creating it on first use
+   */
+  public static IdAllocator getInstance() throws IOException {
+    IdAllocator allocator = instance;
+    if (allocator == null) {
+      synchronized (IdAllocator.class) {
+        allocator = instance;
+        if (allocator == null) {
+          allocator = new IdAllocator(DBConnUtils.getIntProperty(BLOCK_SIZE_PROPERTY, 100));
+          instance = allocator;
+        }
+      }
+    }
+    return allocator;
+  }
+
+  /**
+   * Takes the next reservation ID in the caller's transaction, using that connection's prepared
+   * statement for {@link #TAKE_IDS_SQL}. The counter row stays locked until the transaction
+   * ends, and a rollback gives the ID back.
+   */
+  public static int takeReservationId(PreparedStatement takeIds) throws SQLException {
+    return takeIds(takeIds, RESERVATION_IDS, 1);
+  }
+
+  /**
+   * Returns an itinerary ID that no other booking in any process has been given. New blocks are
+   * taken on a connection borrowed from the pool and committed on their own, so they are never
+   * given back by a booking that rolls back. Callers must not hold a pooled connection
+   * themselves, or sessions could wait on each other for one.
+   */
+  public int nextItineraryId() throws SQLException, IOException {
+    while (true) {
+      long current = block.get();
+      int next = (int) (current >>> 32);
+      int end = (int) current;
+      if (next < end) {
+        if (block.compareAndSet(current, pack(next + 1, end))) {
+          if (end - next - 1 == blockSize / 2) {
+            prefetch();
+          }
+          return next;
+        }
+        continue;
+      }
+      // The block is used up; one caller installs the next one while the others wait for it
+      fetching.lock();
+      try {
+        if (block.get() == current) {
+          long fetched = spare.getAndSet(0);
+          block.set(fetched != 0 ? fetched : fetchBlock());
+        }
+      } finally {
+        fetching.unlock();
+      }
+    }
+  }
+
+  // Fetches the block after the current one unless one is fetched or being fetched already
+  private void prefetch() {
+    if (spare.get() != 0 || !fetching.tryLock()) {
+      return;
+    }
+    try {
+      if (spare.get() == 0) {
+        spare.set(fetchBlock());
+      }
+    } catch (SQLException | IOException | RuntimeException e) {
+      // The block is fetched when the current one runs out instead
+    } finally {
+      fetching.unlock();
+    }
+  }
+
+  // Takes a new block of itinerary IDs and returns it packed
+  private long fetchBlock() throws SQLException, IOException {
+    ConnectionPool pool = ConnectionPool.getInstance();
+    ConnectionPool.Pooled pooled = pool.borrow();
+    int first;
+    try {
+      first = takeIds(pooled.prepare(TAKE_IDS_SQL), ITINERARY_IDS, blockSize);
+    } catch (SQLException | RuntimeException e) {
+      pool.discard(pooled);
+      throw e;
+    }
+    pool.release(pooled);
+    return pack(first, first + blockSize);
+  }
+
+  private static long pack(int next, int end) {
+    return (long) next << 32 | (end & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Restarts reservation IDs at 1. Used when the reservations are cleared; itinerary IDs are
+   * left alone, since other processes may still hold blocks of them.
+   */
+  public static void reset(Connection conn) throws SQLException {
+    try (PreparedStatement restart = conn.prepareStatement(RESTART_RESERVATION_IDS_SQL)) {
+      restart.executeUpdate();
+    }
+  }
+
+  // Advances the named counter by count, creating it if needed, and returns the first of the
+  //    IDs taken
+  private static int takeIds(PreparedStatement takeIds, String counter, int count)
+      throws SQLException {
+    takeIds.clearParameters();
+    takeIds.setInt(1, count);
+    takeIds.setString(2, counter);
+    try (ResultSet results = takeIds.executeQuery()) {
+      if (results.next()) {
+        return results.getInt(1);
+      }
+    }
+    String createSql = counter.equals(RESERVATION_IDS) ? CREATE_RESERVATION_COUNTER_SQL
+            : CREATE_ITINERARY_COUNTER_SQL;
+    try (PreparedStatement create = takeIds.getConnection().prepareStatement(createSql)) {
+      create.executeUpdate();
+    } catch (SQLException e) {
+      // Another session created the counter first, which is just as good
+      if (e.getErrorCode() != 2627 && e.getErrorCode() != 2601) {
+        throw e;
+      }
+    }
+    return takeIds(takeIds, counter, count);
+  }
+}
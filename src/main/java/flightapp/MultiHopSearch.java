@@ -0,0 +1,203 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Finds the shortest itineraries with between two and a configurable number of legs.
+ *
+ * Each day's flights form a graph whose nodes are cities and whose edges are flights. The search
+ * enumerates simple paths through that graph best-first, keyed by the minutes flown so far plus
+ * a lower bound on the minutes still needed to reach the destination, so itineraries come out
+ * ordered by total flight time and then by the fids of their legs. The lower bound is the
+ * shortest route to the destination using the legs that remain, computed per search by relaxing
+ * the fastest flight on every route. Flights sharing a route are only queued once the previous,
+ * faster flight on that route has been taken off the queue.
+ */
+public class MultiHopSearch {
+  private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+  private final FlightIndex index;
+  private final FlightStore store;
+  private final int maxLegs;
+  private final int maxDuration;
+
+  /**
+   * @param index       flights to search
+   * @param maxLegs     most legs any itinerary may have, at least 2
+   * @param maxDuration most minutes any itinerary may take in total, or 0 for no limit
+   */
+  public MultiHopSearch(FlightIndex index, int maxLegs, int maxDuration) {
+    if (maxLegs < 2) {
+      throw new IllegalArgumentException("Itineraries with connections have at least 2 legs");
+    }
+    this.index = index;
+    this.store = index.store();
+    this.maxLegs = maxLegs;
+    this.maxDuration = maxDuration > 0 ? maxDuration : Integer.MAX_VALUE;
+  }
+
+  /**
+   * Returns up to {@code limit} itineraries with at least one connection from the origin city to
+   * the destination city on the given day, ordered by total flight time and then by the fids of
+   * their legs. The origin and the stops are all different cities, and the destination is only
+   * reached by the last leg, so it may be the origin itself. With two legs this gives the same
+   * itineraries as the one-stop query, including round trips such as A to B and back to A.
+   */
+  public List<Query.Compact> connectingItineraries(String originCity, String destCity,
+                                                   int dayOfMonth, int limit) {
+    int origin = store.cityCode(originCity);
+    int dest = store.cityCode(destCity);
+    List<Query.Compact> itineraries = new ArrayList<>();
+    if (limit <= 0 || origin < 0 || dest < 0) {
+      return itineraries;
+    }
+
+    int[][] bounds = lowerBounds(dayOfMonth, dest);
+    PriorityQueue<Path> frontier = new PriorityQueue<>();
+    expand(new Path(origin), dayOfMonth, dest, bounds, frontier);
+    while (!frontier.isEmpty() && itineraries.size() < limit) {
+      Path path = frontier.poll();
+      Path sibling = path.sibling();
+      if (sibling != null && sibling.estimate <= maxDuration) {
+        frontier.add(sibling);
+      }
+      if (path.city == dest) {
+        itineraries.add(path.toItinerary());
+      } else {
+        expand(path, dayOfMonth, dest, bounds, frontier);
+      }
+    }
+    return itineraries;
+  }
+
+  // Queues the fastest flight on every route leaving the end of the given path
+  private void expand(Path path, int dayOfMonth, int dest, int[][] bounds,
+                      PriorityQueue<Path> frontier) {
+    int[] cities = index.destinations(dayOfMonth, path.city);
+    int[] starts = index.routeStarts(dayOfMonth, path.city);
+    int legs = path.legs + 1;
+    for (int i = 0; i < cities.length; i++) {
+      int city = cities[i];
+      int bound;
+      if (city == dest) {
+        // Checked before the visited cities, since the destination may be the origin
+        bound = legs >= 2 ? 0 : UNREACHABLE;
+      } else if (legs < maxLegs && !path.visits(city)) {
+        bound = bounds[maxLegs - legs][city];
+      } else {
+        bound = UNREACHABLE;
+      }
+      if (bound == UNREACHABLE) {
+        continue;
+      }
+      Path next = new Path(path, city, starts[i], starts[i + 1], bound);
+      if (next.estimate <= maxDuration) {
+        frontier.add(next);
+      }
+    }
+  }
+
+  // bounds[n][city] is the fewest minutes needed to reach dest in at most n legs, or
+  //    UNREACHABLE
+  private int[][] lowerBounds(int dayOfMonth, int dest) {
+    int[][] bounds = new int[maxLegs][store.numCities()];
+    Arrays.fill(bounds[0], UNREACHABLE);
+    bounds[0][dest] = 0;
+    for (int n = 1; n < maxLegs; n++) {
+      int[] previous = bounds[n - 1];
+      int[] current = bounds[n];
+      System.arraycopy(previous, 0, current, 0, current.length);
+      for (int origin = 0; origin < current.length; origin++) {
+        int[] cities = index.destinations(dayOfMonth, origin);
+        int[] starts = index.routeStarts(dayOfMonth, origin);
+        for (int i = 0; i < cities.length; i++) {
+          int rest = previous[cities[i]];
+          if (rest != UNREACHABLE) {
+            // Routes are ordered by time, so their first flight is the fastest
+            current[origin] = Math.min(current[origin], store.time(starts[i]) + rest);
+          }
+        }
+      }
+    }
+    return bounds;
+  }
+
+  // A partial itinerary whose last leg is the given row of a route spanning [row, routeEnd)
+  private final class Path implements Comparable<Path> {
+    final Path parent;
+    final int city;
+    final int row;
+    final int routeEnd;
+    final int legs;
+    final int duration;
+    final int bound;
+    final int estimate;
+    final int[] fids;
+
+    // The empty itinerary that starts at the origin city
+    Path(int origin) {
+      this.parent = null;
+      this.city = origin;
+      this.row = -1;
+      this.routeEnd = -1;
+      this.legs = 0;
+      this.duration = 0;
+      this.bound = 0;
+      this.estimate = 0;
+      this.fids = new int[0];
+    }
+
+    Path(Path parent, int city, int row, int routeEnd, int bound) {
+      this.parent = parent;
+      this.city = city;
+      this.row = row;
+      this.routeEnd = routeEnd;
+      this.legs = parent.legs + 1;
+      this.duration = parent.duration + store.time(row);
+      this.bound = bound;
+      this.estimate = duration + bound;
+      this.fids = Arrays.copyOf(parent.fids, legs);
+      this.fids[legs - 1] = store.fid(row);
+    }
+
+    // The same path with the next slowest flight on its last route, or null if there is none
+    Path sibling() {
+      if (row + 1 >= routeEnd) {
+        return null;
+      }
+      return new Path(parent, city, row + 1, routeEnd, bound);
+    }
+
+    boolean visits(int other) {
+      for (Path p = this; p != null; p = p.parent) {
+        if (p.city == other) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    Query.Compact toItinerary() {
+      int[] rows = new int[legs];
+      for (Path p = this; p.parent != null; p = p.parent) {
+        rows[p.legs - 1] = p.row;
+      }
+      return new Query.Compact(store, rows, duration);
+    }
+
+    @Override
+    public int compareTo(Path other) {
+      if (estimate != other.estimate) {
+        return Integer.compare(estimate, other.estimate);
+      }
+      // A prefix sorts before every itinerary that extends it
+      int shared = Math.min(fids.length, other.fids.length);
+      for (int i = 0; i < shared; i++) {
+        if (fids[i] != other.fids[i]) {
+          return Integer.compare(fids[i], other.fids[i]);
+        }
+      }
+      return Integer.compare(fids.length, other.fids.length);
+    }
+  }
+}
@@ -0,0 +1,236 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Precomputed table of the best K one-stop itineraries for every (origin city, destination city,
+ * day of month), so searches without the flight index can skip the FLIGHTS self-join.
+ *
+ * OneStops_ckirby03 holds two builds of the itineraries, ranked the same way as the live
+ * one-stop query, in slots 0 and 1. OneStopsInfo_ckirby03 records which slot is active, its K,
+ * and the fingerprint of FLIGHTS it was built from. A rebuild fills the other slot and then
+ * makes it active, so searches keep reading the previous build until the new one is complete.
+ *
+ * The active build is only used while its fingerprint matches FLIGHTS, which is checked on first
+ * use. Since the fingerprint scans FLIGHTS, checking again later is opt-in: when
+ * flightapp.one_stop_table_check_seconds is positive, the first search after every such
+ * interval checks again in the background. A stale table is rebuilt in the background unless
+ * flightapp.one_stop_table_rebuild is false, and searches use the live join until the rebuild
+ * is done. A failed rebuild is retried at the next check, if any; the last failure is kept for
+ * {@link #lastFailure()}.
+ */
+public class OneStopTable {
+  private static final String K_PROPERTY = "flightapp.one_stop_table_k";
+  private static final String REBUILD_PROPERTY = "flightapp.one_stop_table_rebuild";
+  private static final String CHECK_INTERVAL_PROPERTY = "flightapp.one_stop_table_check_seconds";
+
+  private static final String READ_INFO_SQL =
+          "SELECT k, fingerprint, slot FROM OneStopsInfo_ckirby03";
+  // Also keeps other builders out until this one commits
+  private static final String LOCK_INFO_SQL =
+          "SELECT slot FROM OneStopsInfo_ckirby03 WITH (UPDLOCK, HOLDLOCK)";
+  private static final String CLEAR_INFO_SQL = "DELETE FROM OneStopsInfo_ckirby03";
+  private static final String WRITE_INFO_SQL =
+          "INSERT INTO OneStopsInfo_ckirby03 VALUES (?, ?, ?)";
+  private static final String CLEAR_SLOT_SQL = "DELETE FROM OneStops_ckirby03 WHERE slot = ?";
+  private static final String BUILD_ONE_STOPS_SQL =
+          "INSERT INTO OneStops_ckirby03 (slot, day_of_month, origin_city, dest_city, position, fid1, fid2, total_time) " +
+                  "SELECT ?, day_of_month, origin_city, dest_city, position, fid1, fid2, total_time FROM (" +
+                  "SELECT f1.day_of_month, f1.origin_city, f2.dest_city, f1.fid AS fid1, f2.fid AS fid2, " +
+                  "f1.actual_time + f2.actual_time AS total_time, " +
+                  "ROW_NUMBER() OVER (PARTITION BY f1.day_of_month, f1.origin_city, f2.dest_city " +
+                  "ORDER BY f1.actual_time + f2.actual_time, f1.fid, f2.fid) AS position " +
+                  "FROM FLIGHTS AS f1 " +
+                  "JOIN FLIGHTS AS f2 ON f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month " +
+                  "WHERE f1.canceled = 0 AND f2.canceled = 0) AS ranked " +
+                  "WHERE position <= ?";
+
+  private static volatile OneStopTable instance;
+  private static volatile boolean disabled;
+
+  private final int wantedK;
+  private final boolean rebuild;
+  private final long checkIntervalNanos;
+
+  // The build searches read, or null while the table is stale
+  private volatile Build current;
+  private volatile long lastCheck;
+  private volatile Exception lastFailure;
+  // Set while a check or rebuild runs in the background
+  private final AtomicBoolean checking = new AtomicBoolean();
+
+  private OneStopTable(int wantedK, boolean rebuild, long checkIntervalSeconds) {
+    this.wantedK = wantedK;
+    this.rebuild = rebuild;
+    this.checkIntervalNanos = TimeUnit.SECONDS.toNanos(checkIntervalSeconds);
+  }
+
+  /**
+   * Returns the process-wide view of the table, checking on first use whether it matches
+   * FLIGHTS and starting a rebuild if it does not.
+   *
+   * @return null if flightapp.one_stop_table_k is not set to a positive number
+   */
+  public static OneStopTable getInstance() throws SQLException, IOException {
+    OneStopTable table = instance;
+    if (table == null && !disabled) {
+      synchronized (OneStopTable.class) {
+        table = instance;
+        if (table == null && !disabled) {
+          int k = DBConnUtils.getIntProperty(K_PROPERTY, 0);
+          if (k <= 0) {
+            disabled = true;
+          } else {
+            table = new OneStopTable(k, DBConnUtils.getBooleanProperty(REBUILD_PROPERTY, true),
+                    DBConnUtils.getIntProperty(CHECK_INTERVAL_PROPERTY, 0));
+            table.open();
+            instance = table;
+          }
+        }
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Returns the slot of OneStops_ckirby03 to read the best {@code numItineraries} one-stop
+   * itineraries of a route from, or -1 if the table is stale or holds fewer per route. Starts a
+   * background check against FLIGHTS when one is due.
+   */
+  public int slotFor(int numItineraries) {
+    if (checkIntervalNanos > 0 && System.nanoTime() - lastCheck >= checkIntervalNanos) {
+      startCheck();
+    }
+    Build build = current;
+    return build != null && numItineraries <= build.k ? build.slot : -1;
+  }
+
+  /**
+   * The error that ended the last failed check or rebuild, or null if the last one succeeded
+   */
+  public Exception lastFailure() {
+    return lastFailure;
+  }
+
+  private void open() throws SQLException, IOException {
+    Connection conn = DBConnUtils.openConnection();
+    try {
+      current = currentBuild(conn);
+    } finally {
+      conn.close();
+    }
+    lastCheck = System.nanoTime();
+    if (current == null && rebuild) {
+      startCheck();
+    }
+  }
+
+  // Checks the table against FLIGHTS on a background thread, unless a check is already running
+  private void startCheck() {
+    if (!checking.compareAndSet(false, true)) {
+      return;
+    }
+    Thread checker = new Thread(() -> {
+      try {
+        check();
+        lastFailure = null;
+      } catch (SQLException | IOException | RuntimeException e) {
+        lastFailure = e;
+        System.err.println("Could not check or rebuild the one-stop table: " + e.getMessage());
+      } finally {
+        lastCheck = System.nanoTime();
+        checking.set(false);
+      }
+    }, "one-stop-table-checker");
+    checker.setDaemon(true);
+    checker.start();
+  }
+
+  private void check() throws SQLException, IOException {
+    Connection conn = DBConnUtils.openConnection();
+    try {
+      Build build = currentBuild(conn);
+      // Searches use the live join from here until a rebuild is done
+      current = build;
+      if (build == null && rebuild) {
+        build(conn, wantedK);
+        current = currentBuild(conn);
+      }
+    } finally {
+      conn.close();
+    }
+  }
+
+  // Returns the active build if it holds wantedK itineraries per route and matches FLIGHTS
+  private Build currentBuild(Connection conn) throws SQLException {
+    long fingerprint = FlightSnapshot.fingerprint(conn);
+    try (Statement statement = conn.createStatement();
+         ResultSet results = statement.executeQuery(READ_INFO_SQL)) {
+      if (results.next() && results.getInt("k") == wantedK
+          && results.getLong("fingerprint") == fingerprint) {
+        return new Build(wantedK, results.getInt("slot"));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Fills the inactive slot of the table with the best {@code k} one-stop itineraries of every
+   * city pair and day in FLIGHTS, then makes it the active one. Runs as a single transaction
+   * that only locks the inactive slot's rows, so searches keep reading the active slot while it
+   * runs and never see a partly built table.
+   */
+  public static void build(Connection conn, int k) throws SQLException {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive");
+    }
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);
+    try (Statement statement = conn.createStatement();
+         PreparedStatement clearStatement = conn.prepareStatement(CLEAR_SLOT_SQL);
+         PreparedStatement buildStatement = conn.prepareStatement(BUILD_ONE_STOPS_SQL);
+         PreparedStatement infoStatement = conn.prepareStatement(WRITE_INFO_SQL)) {
+      int slot = 0;
+      try (ResultSet results = statement.executeQuery(LOCK_INFO_SQL)) {
+        if (results.next()) {
+          slot = 1 - results.getInt("slot");
+        }
+      }
+      long fingerprint = FlightSnapshot.fingerprint(conn);
+      clearStatement.setInt(1, slot);
+      clearStatement.executeUpdate();
+      buildStatement.setInt(1, slot);
+      buildStatement.setInt(2, k);
+      buildStatement.executeUpdate();
+      statement.executeUpdate(CLEAR_INFO_SQL);
+      infoStatement.setInt(1, k);
+      infoStatement.setLong(2, fingerprint);
+      infoStatement.setInt(3, slot);
+      infoStatement.executeUpdate();
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(autoCommit);
+    }
+  }
+
+  // A complete build of the table: its itineraries per route and the slot holding them
+  private static class Build {
+    private final int k;
+    private final int slot;
+
+    private Build(int k, int slot) {
+      this.k = k;
+      this.slot = slot;
+    }
+  }
+}
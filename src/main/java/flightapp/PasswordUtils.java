@@ -1,12 +1,10 @@
 package flightapp;
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.util.Properties;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
@@ -15,6 +13,15 @@ import java.util.Arrays;
 
 /**
  * A collection of utility methods to help with managing passwords
+ *
+ * Hashes are stored in a self-describing format that records the algorithm, iteration count and
+ * lengths they were made with:
+ *
+ *   '$' | format (1) | algorithm | iterations (4 bytes) | salt length | key length | salt | key
+ *
+ * New hashes use PBKDF2 with HMAC-SHA256 and a 32-byte key, which is a single PBKDF2 block. The
+ * legacy format is a bare 16-byte salt followed by a 128-byte PBKDF2-HMAC-SHA1 key, which takes
+ * seven blocks, each as costly as the whole of a new hash; it is still accepted when verifying.
  */
 public class PasswordUtils {
   /**
@@ -22,25 +29,53 @@ public class PasswordUtils {
    */
   public static byte[] saltAndHashPassword(String password) {
     byte[] salt = generateSalt();
-    byte[] saltedHash = hashWithSalt(password, salt);
-    byte[] saltAndSaltedHash = new byte[SALT_LENGTH_BYTES + saltedHash.length];
-
-    // Add each byte from salt
-    for (int i = 0; i < SALT_LENGTH_BYTES; i++) {
-      saltAndSaltedHash[i] = salt[i];
-    }
-    // Add each byte from saltedHash
-    for (int i = 0; i < saltedHash.length; i++) {
-      saltAndSaltedHash[i + SALT_LENGTH_BYTES] = saltedHash[i];
-    }
-    return saltAndSaltedHash;
+    byte[] key = derive(ALGORITHMS[CURRENT_ALGORITHM], password, salt, CURRENT_ITERATIONS,
+                        CURRENT_KEY_LENGTH_BYTES);
+    ByteBuffer hash = ByteBuffer.allocate(HEADER_LENGTH_BYTES + salt.length + key.length);
+    hash.put(FORMAT_MARKER).put(FORMAT_VERSION).put(CURRENT_ALGORITHM)
+        .putInt(CURRENT_ITERATIONS).put((byte) salt.length).put((byte) key.length)
+        .put(salt).put(key);
+    return hash.array();
   }
 
   /**
    * Verifies whether the plaintext password can be hashed to provided salted hashed password.
    */
   public static boolean plaintextMatchesSaltedHash(String plaintext, byte[] saltedHashed) {
+    ByteBuffer header = parseHeader(saltedHashed);
+    if (header == null) {
+      return legacyMatches(plaintext, saltedHashed);
+    }
+    byte algorithm = header.get(2);
+    int iterations = header.getInt(3);
+    int saltLength = header.get(7) & 0xff;
+    int keyLength = header.get(8) & 0xff;
+    byte[] salt = Arrays.copyOfRange(saltedHashed, HEADER_LENGTH_BYTES,
+                                     HEADER_LENGTH_BYTES + saltLength);
+    byte[] key = Arrays.copyOfRange(saltedHashed, HEADER_LENGTH_BYTES + saltLength,
+                                    saltedHashed.length);
+    byte[] plaintextKey = derive(ALGORITHMS[algorithm], plaintext, salt, iterations, keyLength);
+    return MessageDigest.isEqual(key, plaintextKey);
+  }
+
+  /**
+   * Whether a stored hash was made with other parameters than new hashes are, so it should be
+   * replaced by a new hash of the password the next time the password is known.
+   */
+  public static boolean needsRehash(byte[] saltedHashed) {
+    ByteBuffer header = parseHeader(saltedHashed);
+    return header == null
+        || header.get(2) != CURRENT_ALGORITHM
+        || header.getInt(3) != CURRENT_ITERATIONS
+        || (header.get(7) & 0xff) != SALT_LENGTH_BYTES
+        || (header.get(8) & 0xff) != CURRENT_KEY_LENGTH_BYTES;
+  }
 
+  // Verifies a password against a hash in the legacy format
+  private static boolean legacyMatches(String plaintext, byte[] saltedHashed) {
+    if (saltedHashed.length <= SALT_LENGTH_BYTES) {
+      return false;
+    }
     byte[] salt = new byte[SALT_LENGTH_BYTES];
     byte[] saltedHash = new byte[saltedHashed.length - SALT_LENGTH_BYTES];
 
@@ -54,14 +89,43 @@ public class PasswordUtils {
     }
 
     byte[] plaintextSaltedHash = hashWithSalt(plaintext, salt);
-    return Arrays.equals(saltedHash, plaintextSaltedHash);
+    return MessageDigest.isEqual(saltedHash, plaintextSaltedHash);
+  }
+
+  // Returns the header of a hash in the versioned format, or null if the hash is in the legacy
+  //    format. A legacy hash starts with a random salt, so it can begin like a versioned one by
+  //    chance; only a header that describes the rest of the hash exactly is taken as one.
+  private static ByteBuffer parseHeader(byte[] saltedHashed) {
+    if (saltedHashed.length < HEADER_LENGTH_BYTES
+        || saltedHashed[0] != FORMAT_MARKER || saltedHashed[1] != FORMAT_VERSION) {
+      return null;
+    }
+    ByteBuffer header = ByteBuffer.wrap(saltedHashed, 0, HEADER_LENGTH_BYTES);
+    byte algorithm = header.get(2);
+    int iterations = header.getInt(3);
+    int saltLength = header.get(7) & 0xff;
+    int keyLength = header.get(8) & 0xff;
+    if (algorithm < 0 || algorithm >= ALGORITHMS.length || iterations <= 0 || keyLength == 0
+        || saltedHashed.length != HEADER_LENGTH_BYTES + saltLength + keyLength) {
+      return null;
+    }
+    return header;
   }
-  
+
   // Password hashing parameter constants.
   private static final int HASH_STRENGTH = 65536;
   private static final int KEY_LENGTH_BYTES = 128;
   private static final int SALT_LENGTH_BYTES = 16;
 
+  // Versioned format. Algorithms are recorded by their index in ALGORITHMS.
+  private static final byte FORMAT_MARKER = '$';
+  private static final byte FORMAT_VERSION = 1;
+  private static final int HEADER_LENGTH_BYTES = 9;
+  private static final String[] ALGORITHMS = {"PBKDF2WithHmacSHA1", "PBKDF2WithHmacSHA256"};
+  private static final byte CURRENT_ALGORITHM = 1;
+  private static final int CURRENT_ITERATIONS = 65536;
+  private static final int CURRENT_KEY_LENGTH_BYTES = 32;
+
   /**
    * Generate a small bit of randomness to serve as a password "salt"
    */
@@ -73,22 +137,25 @@ public class PasswordUtils {
   }
 
   /**
-   * Uses the provided salt to generate a cryptographically-secure hash of the provided password.
-   * The resultant byte array will be KEY_LENGTH_BYTES bytes long.
+   * Uses the provided salt to generate a cryptographically-secure hash of the provided password
+   * in the legacy format. The resultant byte array will be KEY_LENGTH_BYTES bytes long.
    */
   static byte[] hashWithSalt(String password, byte[] salt)
     throws IllegalStateException {
+    return derive(ALGORITHMS[0], password, salt, HASH_STRENGTH, KEY_LENGTH_BYTES);
+  }
+
+  // Derives a key of the given length from the password with the named PBKDF2 algorithm
+  private static byte[] derive(String algorithm, String password, byte[] salt, int iterations,
+                               int keyLengthBytes) throws IllegalStateException {
     // Specify the hash parameters, including the salt
     KeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
-                                  HASH_STRENGTH, KEY_LENGTH_BYTES * 8 /* length in bits */);
+                                  iterations, keyLengthBytes * 8 /* length in bits */);
 
     // Hash the whole thing
-    SecretKeyFactory factory = null;
-    byte[] hash = null; 
     try {
-      factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-      hash = factory.generateSecret(spec).getEncoded();
-      return hash;
+      SecretKeyFactory factory = SecretKeyFactory.getInstance(algorithm);
+      return factory.generateSecret(spec).getEncoded();
     } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
       throw new IllegalStateException();
     }
@@ -2,11 +2,14 @@ package flightapp;
 
 import javax.xml.transform.Result;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Runs queries against a back-end database
@@ -18,17 +21,23 @@ public class Query extends QueryAbstract {
   private static final String FLIGHT_CAPACITY_SQL =
           "SELECT capacity FROM Flights WHERE fid = ?";
   private static final String MATCHING_USERNAME_SQL =
-          "SELECT * FROM Users_ckirby03 WHERE LOWER(username) = LOWER(?)";
+          "SELECT * FROM Users_ckirby03 WHERE username_lower = ?";
   private static final String ADD_USER_SQL =
-          "INSERT INTO Users_ckirby03 VALUES (?, ?, ?)";
+          "INSERT INTO Users_ckirby03 (username, username_lower, password, balance) VALUES (?, ?, ?, ?)";
+  private static final String READ_TOKEN_CLAIMS_SQL =
+          "SELECT token_epoch, token_salt FROM Users_ckirby03 WHERE username_lower = ?";
+  private static final String REVOKE_TOKENS_SQL =
+          "UPDATE Users_ckirby03 SET token_epoch = token_epoch + 1 WHERE username_lower = ?";
+  private static final String UPDATE_PASSWORD_SQL =
+          "UPDATE Users_ckirby03 SET password = ? WHERE username_lower = ? AND password = ?";
   private static final String FIND_DIRECT_ITINERARY_SQL =
-          "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price \n" +
+          "SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price \n" +
                   "FROM FLIGHTS AS f\n" +
                   "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled = 0\n" +
                   "ORDER BY actual_time, fid";
 
   private static final String FIND_INDIRECT_ITINERARY_SQL =
-          "SELECT f1.fid AS f1_fid, f1.day_of_month AS f1_day_of_month, f1.carrier_id AS f1_carrier_id, " +
+          "SELECT TOP (?) f1.fid AS f1_fid, f1.day_of_month AS f1_day_of_month, f1.carrier_id AS f1_carrier_id, " +
                   "f1.flight_num AS f1_flight_num, f1.origin_city AS f1_origin_city, " +
                   "f1.dest_city AS f1_dest_city, f1.actual_time AS f1_actual_time, f1.capacity AS f1_capacity, " +
                   "f1.price AS f1_price, f2.fid AS f2_fid, f2.day_of_month AS f2_day_of_month, " +
@@ -41,9 +50,39 @@ public class Query extends QueryAbstract {
                   "WHERE f1.origin_city = ? AND f2.dest_city = ? AND f1.day_of_month = ? AND f2.day_of_month = ? " +
                   "AND f1.canceled = 0 AND f2.canceled = 0 " +
                   "ORDER BY total_time, f1.fid, f2.fid";
+  private static final String FIND_PRECOMPUTED_ONE_STOPS_SQL =
+          "SELECT TOP (?) f1.fid AS f1_fid, f1.day_of_month AS f1_day_of_month, f1.carrier_id AS f1_carrier_id, " +
+                  "f1.flight_num AS f1_flight_num, f1.origin_city AS f1_origin_city, " +
+                  "f1.dest_city AS f1_dest_city, f1.actual_time AS f1_actual_time, f1.capacity AS f1_capacity, " +
+                  "f1.price AS f1_price, f2.fid AS f2_fid, f2.day_of_month AS f2_day_of_month, " +
+                  "f2.carrier_id AS f2_carrier_id, f2.flight_num AS f2_flight_num, f2.origin_city AS f2_origin_city, " +
+                  "f2.dest_city AS f2_dest_city, f2.actual_time AS f2_actual_time, f2.capacity AS f2_capacity, " +
+                  "f2.price AS f2_price, o.total_time " +
+                  "FROM OneStops_ckirby03 AS o " +
+                  "JOIN FLIGHTS AS f1 ON f1.fid = o.fid1 " +
+                  "JOIN FLIGHTS AS f2 ON f2.fid = o.fid2 " +
+                  "WHERE o.slot = ? AND o.origin_city = ? AND o.dest_city = ? AND o.day_of_month = ? " +
+                  "ORDER BY o.position";
   private static final String FIND_DAY_AND_MONTH_FROM_ID_SQL = "SELECT day_of_month, month_id FROM FLIGHTS WHERE fid = ?";
 
   private static final String ADD_ITINERARY_SQL = "INSERT INTO Itineraries_ckirby03 VALUES(?, ?, ?)";
+  // Separate statements for direct itineraries, whose fid2 is NULL, so both can seek the
+  //    UNIQUE (fid1, fid2) index
+  private static final String FIND_ONE_STOP_ITINERARY_ID_SQL =
+          "SELECT itid FROM Itineraries_ckirby03 WHERE fid1 = ? AND fid2 = ?";
+  private static final String FIND_DIRECT_ITINERARY_ID_SQL =
+          "SELECT itid FROM Itineraries_ckirby03 WHERE fid1 = ? AND fid2 IS NULL";
+
+  // Itinerary IDs of the flight pairs booked recently, keyed by canonicalKey; shared by every
+  //    session, emptied when the tables are cleared, and checked by each booking that uses them
+  private static final int MAX_CANONICAL_ITINERARIES = 100000;
+  private static final Map<Long, Integer> CANONICAL_ITINERARIES = Collections.synchronizedMap(
+          new LinkedHashMap<Long, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+              return size() > MAX_CANONICAL_ITINERARIES;
+            }
+          });
 
   private static final String RETRIEVE_UNPAID_RESERVATION_SQL =
           "SELECT * FROM Reservations_ckirby03 WHERE rid = ? AND paid = 0";
@@ -56,8 +95,32 @@ public class Query extends QueryAbstract {
         + " WHERE r.username = ?"
         + " AND (f.month_id = ?"
         + " AND f.day_of_month = ?)";
+  // Adds nothing if the itinerary row is gone or holds other flights, e.g. a cached itid after
+  //    another process cleared the tables; the seek is on the itid primary key
   private static final String MAKE_NEW_RESERVATION_SQL =
-          "INSERT INTO Reservations_ckirby03 VALUES (?, ?, 0, ?)";
+          "INSERT INTO Reservations_ckirby03 SELECT ?, ?, 0, itid FROM Itineraries_ckirby03 " +
+                  "WHERE itid = ? AND fid1 = ? AND ISNULL(fid2, 0) = ?";
+
+  // Takes a seat on a flight unless all of its seats are booked; updates one row on success
+  private static final String RESERVE_SEAT_SQL =
+          "MERGE SeatsBooked_ckirby03 WITH (HOLDLOCK) AS s " +
+                  "USING (SELECT ? AS fid, ? AS capacity) AS f ON s.fid = f.fid " +
+                  "WHEN MATCHED AND s.booked < f.capacity THEN UPDATE SET booked = s.booked + 1, version = s.version + 1 " +
+                  "WHEN NOT MATCHED AND f.capacity > 0 THEN INSERT (fid, booked, version) VALUES (f.fid, 1, 1);";
+
+  // Optimistic booking: rows are read without holding locks and updated only if their version
+  //    is still the one that was read
+  private static final String READ_SEATS_SQL =
+          "SELECT booked, version FROM SeatsBooked_ckirby03 WHERE fid = ?";
+  private static final String UPDATE_SEATS_SQL =
+          "UPDATE SeatsBooked_ckirby03 SET booked = booked + 1, version = version + 1 " +
+                  "WHERE fid = ? AND version = ?";
+  private static final String ADD_SEATS_SQL =
+          "INSERT INTO SeatsBooked_ckirby03 (fid, booked, version) VALUES (?, 1, 1)";
+  private static final String READ_USER_VERSION_SQL =
+          "SELECT version FROM Users_ckirby03 WHERE username = ?";
+  private static final String UPDATE_USER_VERSION_SQL =
+          "UPDATE Users_ckirby03 SET version = version + 1 WHERE username = ? AND version = ?";
 
   private static final String RETRIEVE_BALANCE_SQL =
           "SELECT balance FROM Users_ckirby03 WHERE username = ?";
@@ -85,38 +148,120 @@ public class Query extends QueryAbstract {
   private PreparedStatement flightCapacityStmt;
   private PreparedStatement matchingUsernameStmt;
   private PreparedStatement addUserStmt;
+  private PreparedStatement updatePasswordStmt;
+  private PreparedStatement readTokenClaimsStmt;
+  private PreparedStatement revokeTokensStmt;
   private PreparedStatement findDirectItineraryStmt;
   private PreparedStatement findIndirectItineraryStmt;
+  private PreparedStatement findPrecomputedOneStopsStmt;
   private PreparedStatement findDayAndMonthFromIdStmt;
   private PreparedStatement addItineraryStmt;
+  private PreparedStatement findOneStopItineraryIdStmt;
+  private PreparedStatement findDirectItineraryIdStmt;
   private PreparedStatement retrieveUnpaidReservationStmt;
   private PreparedStatement numItinerariesByDayUserStmt;
   private PreparedStatement makeNewReservationStmt;
+  private PreparedStatement reserveSeatStmt;
+  private PreparedStatement readSeatsStmt;
+  private PreparedStatement updateSeatsStmt;
+  private PreparedStatement addSeatsStmt;
+  private PreparedStatement readUserVersionStmt;
+  private PreparedStatement updateUserVersionStmt;
   private PreparedStatement updateBalanceStmt;
   private PreparedStatement retrieveBalanceStmt;
   private PreparedStatement retrieveUserReservationInfoStmt;
+  private PreparedStatement takeIdsStmt;
+
+  // Booking mode and the isolation level of each operation's transactions, read once per
+  //    process. Only operations that check an invariant across rows need serializable; reads of
+  //    a user's own data or of FLIGHTS do not.
+  private static final boolean OPTIMISTIC_BOOKING = setting(Query::optimisticBookingSetting);
+  private static final int LOGIN_ISOLATION = setting(() -> DBConnUtils.getIsolationProperty(
+          "flightapp.login_isolation", Connection.TRANSACTION_READ_COMMITTED));
+  private static final int CREATE_ISOLATION = setting(() -> DBConnUtils.getIsolationProperty(
+          "flightapp.create_isolation", Connection.TRANSACTION_SERIALIZABLE));
+  private static final int SEARCH_ISOLATION = setting(() -> DBConnUtils.getIsolationProperty(
+          "flightapp.search_isolation", Connection.TRANSACTION_READ_COMMITTED));
+  // Optimistic bookings detect concurrent bookings through row versions instead of locks
+  private static final int BOOK_ISOLATION = setting(() -> DBConnUtils.getIsolationProperty(
+          "flightapp.book_isolation", OPTIMISTIC_BOOKING ? Connection.TRANSACTION_READ_COMMITTED
+                  : Connection.TRANSACTION_SERIALIZABLE));
+  private static final int PAY_ISOLATION = setting(() -> DBConnUtils.getIsolationProperty(
+          "flightapp.pay_isolation", Connection.TRANSACTION_SERIALIZABLE));
+  private static final int RESERVATIONS_ISOLATION = setting(() -> DBConnUtils.getIsolationProperty(
+          "flightapp.reservations_isolation", Connection.TRANSACTION_READ_COMMITTED));
+
+  static {
+    ResponseWriter.setMaxCachedLines(setting(() -> DBConnUtils.getIntProperty(
+            "flightapp.flight_line_cache_size", ResponseWriter.DEFAULT_MAX_CACHED_LINES)));
+  }
 
   // Instance variables
   private boolean loggedIn;
-  private PasswordUtils managePassword;
-  private HashMap<Integer, Flight[]> providedItineraries;
+  private HashingService hashingService;
+  private SessionTokens sessionTokens;
+  private UsernameFilter usernameFilter;
+  private HashMap<Integer, Compact> providedItineraries;
   private String user;
+  private FlightIndex flightIndex;
+  private MultiHopSearch multiHopSearch;
+  private SearchCache searchCache;
+  private OneStopTable oneStopTable;
+  private IdAllocator idAllocator;
 
   protected Query() throws SQLException, IOException {
-    prepareStatements();
+    flightIndex = FlightIndex.getInstance();
+    int maxLegs = DBConnUtils.getIntProperty("flightapp.max_legs", 2);
+    if (flightIndex != null && maxLegs > 2) {
+      multiHopSearch = new MultiHopSearch(flightIndex, maxLegs,
+              DBConnUtils.getIntProperty("flightapp.max_itinerary_minutes", 0));
+    }
+    searchCache = SearchCache.getInstance();
+    idAllocator = IdAllocator.getInstance();
+    if (flightIndex == null) {
+      oneStopTable = OneStopTable.getInstance();
+    }
     loggedIn = false;
-    managePassword = new PasswordUtils();
+    hashingService = HashingService.getInstance();
+    sessionTokens = SessionTokens.getInstance();
+    usernameFilter = UsernameFilter.getInstance();
     providedItineraries = new HashMap<>();
   }
 
+  // Reads a process-wide setting for a static field
+  private static <T> T setting(Setting<T> setting) {
+    try {
+      return setting.read();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @FunctionalInterface
+  private interface Setting<T> {
+    T read() throws IOException;
+  }
+
+  private static boolean optimisticBookingSetting() throws IOException {
+    String bookingMode = DBConnUtils.getProperty("flightapp.booking_mode", "pessimistic");
+    if (!bookingMode.equals("pessimistic") && !bookingMode.equals("optimistic")) {
+      throw new IllegalArgumentException(
+              "Setting flightapp.booking_mode must be pessimistic or optimistic: " + bookingMode);
+    }
+    return bookingMode.equals("optimistic");
+  }
+
   /**
    * Clear the data in any custom tables created.
    * 
    * WARNING! Do not drop any tables and do not clear the flights table.
    */
   public void clearTables() {
-    try {
-      Statement statement = conn.createStatement() ;
+    borrowConnection();
+    try (Statement statement = conn.createStatement()) {
+
+      // Clear SeatsBooked_ckirby03
+      statement.executeUpdate("DELETE FROM SeatsBooked_ckirby03");
 
       // Clear Reservations_ckirby03
       String clear1 = "DELETE FROM Reservations_ckirby03";
@@ -130,28 +275,52 @@ public class Query extends QueryAbstract {
       String clear3 = "DELETE FROM Users_ckirby03";
       statement.executeUpdate(clear3);
 
+      // Restart reservation IDs at 1
+      IdAllocator.reset(conn);
+      CANONICAL_ITINERARIES.clear();
+      if (usernameFilter != null) {
+        usernameFilter.clear();
+      }
+
     } catch (SQLException e) {
         e.printStackTrace();
+    } finally {
+      releaseConnection();
     }
   }
 
   /*
-   * prepare all the SQL statements in this method.
+   * prepare all the SQL statements in this method. Called each time a connection is borrowed;
+   * the statements come from that connection's cache.
    */
-  private void prepareStatements() throws SQLException {
-    flightCapacityStmt = conn.prepareStatement(FLIGHT_CAPACITY_SQL);
-    matchingUsernameStmt = conn.prepareStatement(MATCHING_USERNAME_SQL);
-    addUserStmt = conn.prepareStatement(ADD_USER_SQL);
-    findDirectItineraryStmt = conn.prepareStatement(FIND_DIRECT_ITINERARY_SQL);
-    findIndirectItineraryStmt = conn.prepareStatement(FIND_INDIRECT_ITINERARY_SQL);
-    findDayAndMonthFromIdStmt = conn.prepareStatement(FIND_DAY_AND_MONTH_FROM_ID_SQL);
-    addItineraryStmt = conn.prepareStatement(ADD_ITINERARY_SQL);
-    retrieveUnpaidReservationStmt = conn.prepareStatement(RETRIEVE_UNPAID_RESERVATION_SQL);
-    numItinerariesByDayUserStmt = conn.prepareStatement(NUM_ITINERARIES_BY_DAY_USER_SQL);
-    makeNewReservationStmt = conn.prepareStatement(MAKE_NEW_RESERVATION_SQL);
-    updateBalanceStmt = conn.prepareStatement(UPDATE_BALANCE_SQL);
-    retrieveBalanceStmt = conn.prepareStatement(RETRIEVE_BALANCE_SQL);
-    retrieveUserReservationInfoStmt = conn.prepareStatement(RETRIEVE_USER_RESERVATION_INFO_SQL);
+  @Override
+  protected void prepareStatements() throws SQLException {
+    flightCapacityStmt = prepare(FLIGHT_CAPACITY_SQL);
+    matchingUsernameStmt = prepare(MATCHING_USERNAME_SQL);
+    addUserStmt = prepare(ADD_USER_SQL);
+    updatePasswordStmt = prepare(UPDATE_PASSWORD_SQL);
+    readTokenClaimsStmt = prepare(READ_TOKEN_CLAIMS_SQL);
+    revokeTokensStmt = prepare(REVOKE_TOKENS_SQL);
+    findDirectItineraryStmt = prepare(FIND_DIRECT_ITINERARY_SQL);
+    findIndirectItineraryStmt = prepare(FIND_INDIRECT_ITINERARY_SQL);
+    findPrecomputedOneStopsStmt = prepare(FIND_PRECOMPUTED_ONE_STOPS_SQL);
+    findDayAndMonthFromIdStmt = prepare(FIND_DAY_AND_MONTH_FROM_ID_SQL);
+    addItineraryStmt = prepare(ADD_ITINERARY_SQL);
+    findOneStopItineraryIdStmt = prepare(FIND_ONE_STOP_ITINERARY_ID_SQL);
+    findDirectItineraryIdStmt = prepare(FIND_DIRECT_ITINERARY_ID_SQL);
+    retrieveUnpaidReservationStmt = prepare(RETRIEVE_UNPAID_RESERVATION_SQL);
+    numItinerariesByDayUserStmt = prepare(NUM_ITINERARIES_BY_DAY_USER_SQL);
+    makeNewReservationStmt = prepare(MAKE_NEW_RESERVATION_SQL);
+    reserveSeatStmt = prepare(RESERVE_SEAT_SQL);
+    readSeatsStmt = prepare(READ_SEATS_SQL);
+    updateSeatsStmt = prepare(UPDATE_SEATS_SQL);
+    addSeatsStmt = prepare(ADD_SEATS_SQL);
+    readUserVersionStmt = prepare(READ_USER_VERSION_SQL);
+    updateUserVersionStmt = prepare(UPDATE_USER_VERSION_SQL);
+    updateBalanceStmt = prepare(UPDATE_BALANCE_SQL);
+    retrieveBalanceStmt = prepare(RETRIEVE_BALANCE_SQL);
+    retrieveUserReservationInfoStmt = prepare(RETRIEVE_USER_RESERVATION_INFO_SQL);
+    takeIdsStmt = prepare(IdAllocator.TAKE_IDS_SQL);
   }
 
   /**
@@ -168,17 +337,128 @@ public class Query extends QueryAbstract {
       return "User already logged in\n";
     }
     try {
-      if (matchingLogin(username, password)) {
+      byte[] storedHash = runTransaction(LOGIN_ISOLATION,
+              () -> storedPasswordHash(username));
+      // Checked after the transaction has given its connection back, since hashing is slow
+      if (storedHash != null && hashingService.matches(password, storedHash)) {
+        if (PasswordUtils.needsRehash(storedHash)) {
+          rehashPassword(username, password, storedHash);
+        }
         loggedIn = true;
         user = username.toLowerCase();
         return "Logged in as " + user + "\n";
       }
-    } catch (SQLException e) {
+    } catch (SQLException | IOException | TimeoutException e) {
       e.printStackTrace();
     }
     return "Login failed\n";
   }
 
+  /**
+   * Issues a session token for the logged-in user.
+   *
+   * @return If no user has logged in, then return "Cannot issue session token, not logged in\n".
+   *         For all other errors, return "Failed to issue session token\n". Otherwise, return
+   *         "Session token: [token]\n".
+   */
+  public String transaction_sessionToken() {
+    if (!loggedIn) {
+      return "Cannot issue session token, not logged in\n";
+    }
+    try {
+      SessionTokens.Claims current = runTransaction(LOGIN_ISOLATION, () -> tokenClaims(user));
+      if (current != null) {
+        return "Session token: " + sessionTokens.issue(user, current.epoch, current.salt) + "\n";
+      }
+    } catch (SQLException | IOException e) {
+      e.printStackTrace();
+    }
+    return "Failed to issue session token\n";
+  }
+
+  /**
+   * Logs in the user a session token was issued to. Checking the token costs one HMAC and one
+   * read of the user's token epoch and salt, instead of a password hash.
+   *
+   * @return If someone has already logged in, then return "User already logged in\n". For all
+   *         other errors, return "Login failed\n". Otherwise, return "Logged in as [username]\n".
+   */
+  public String transaction_loginWithToken(String token) {
+    if (loggedIn) {
+      return "User already logged in\n";
+    }
+    SessionTokens.Claims claims = sessionTokens.verify(token);
+    if (claims == null) {
+      return "Login failed\n";
+    }
+    try {
+      SessionTokens.Claims current = runTransaction(LOGIN_ISOLATION,
+          () -> tokenClaims(claims.username));
+      // Tokens issued before the last revocation carry an older epoch, and tokens of an earlier
+      //    user of the same name another salt
+      if (current != null && current.epoch == claims.epoch && current.salt == claims.salt) {
+        loggedIn = true;
+        user = claims.username;
+        return "Logged in as " + user + "\n";
+      }
+    } catch (SQLException | IOException e) {
+      e.printStackTrace();
+    }
+    return "Login failed\n";
+  }
+
+  /**
+   * Revokes every session token issued to the logged-in user so far.
+   *
+   * @return If no user has logged in, then return "Cannot revoke session tokens, not logged
+   *         in\n". For all other errors, return "Failed to revoke session tokens\n". Otherwise,
+   *         return "Revoked session tokens of [username]\n".
+   */
+  public String transaction_revokeSessionTokens() {
+    if (!loggedIn) {
+      return "Cannot revoke session tokens, not logged in\n";
+    }
+    try {
+      return runTransaction(LOGIN_ISOLATION, () -> {
+        revokeTokensStmt.clearParameters();
+        revokeTokensStmt.setString(1, UsernameFilter.normalize(user));
+        revokeTokensStmt.executeUpdate();
+        return "Revoked session tokens of " + user + "\n";
+      });
+    } catch (SQLException | IOException e) {
+      e.printStackTrace();
+    }
+    return "Failed to revoke session tokens\n";
+  }
+
+  // Returns the token epoch and salt a token of the parameterized user (matched
+  //    case-insensitively) must carry now, or null if there is no such user
+  private SessionTokens.Claims tokenClaims(String username) throws SQLException {
+    readTokenClaimsStmt.clearParameters();
+    readTokenClaimsStmt.setString(1, UsernameFilter.normalize(username));
+    try (ResultSet results = readTokenClaimsStmt.executeQuery()) {
+      return results.next() ? new SessionTokens.Claims(username, results.getInt("token_epoch"),
+          results.getLong("token_salt")) : null;
+    }
+  }
+
+  // Replaces a hash in an older format with a new hash of the password, unless the stored hash
+  //    changed since it was read. The login succeeds even if this fails.
+  private void rehashPassword(String username, String password, byte[] storedHash) {
+    try {
+      byte[] newHash = hashingService.hash(password);
+      runTransaction(LOGIN_ISOLATION, () -> {
+        updatePasswordStmt.clearParameters();
+        updatePasswordStmt.setBytes(1, newHash);
+        updatePasswordStmt.setString(2, UsernameFilter.normalize(username));
+        updatePasswordStmt.setBytes(3, storedHash);
+        return updatePasswordStmt.executeUpdate();
+      });
+    } catch (SQLException | IOException | TimeoutException e) {
+      e.printStackTrace();
+    }
+  }
+
   /**
    * Implement the create user function.
    *
@@ -193,39 +473,40 @@ public class Query extends QueryAbstract {
     if (initAmount < 0) {
       return "Failed to create user\n";
     }
-    boolean usernameExists = true;
     try {
-      usernameExists = matchingUsername(username);
-    } catch (SQLException e) {
-      e.printStackTrace();
-    }
-
-    if (usernameExists) {
-      return "Failed to create user\n";
-    } else {
-      try {
-        addUser(username, password, initAmount);
-      } catch (SQLException e) {
-          try {
-            conn.rollback();
-            conn.setAutoCommit(true);
-
-            return "Failed to create user\n";
-          } catch (SQLException a) {
-            a.printStackTrace();
-          }
-          if (isDeadlock(e)) {
-            return transaction_createCustomer(username, password, initAmount);
+      // Hashed before the transaction borrows a connection, since hashing is slow
+      byte[] passwordHash = hashingService.hash(password);
+      return runTransaction(CREATE_ISOLATION, () -> {
+        // Names the filter has never seen skip the query; the unique username_lower column
+        //    catches any created by another process since the filter was loaded
+        if ((usernameFilter == null || usernameFilter.mightContain(username))
+            && matchingUsername(username)) {
+          return "Failed to create user\n";
+        }
+        try {
+          addUser(username, passwordHash, initAmount);
+        } catch (SQLException e) {
+          if (usernameFilter != null && isDuplicateKey(e)) {
+            // Makes the retry look the name up
+            usernameFilter.add(username);
           }
-      }
+          throw e;
+        }
+        if (usernameFilter != null) {
+          usernameFilter.add(username);
+        }
+        return "Created user " + username + "\n";
+      });
+    } catch (SQLException | IOException | TimeoutException e) {
+      e.printStackTrace();
     }
-    return "Created user " + username + "\n";
+    return "Failed to create user\n";
   }
 
   // Returns true if parameterized username exists in the database (case-insensitively)
   private boolean matchingUsername(String username) throws SQLException {
     matchingUsernameStmt.clearParameters();
-    matchingUsernameStmt.setString(1, username);
+    matchingUsernameStmt.setString(1, UsernameFilter.normalize(username));
     ResultSet results = matchingUsernameStmt.executeQuery();
     int numEquivalentUsernames = 0;
     while (results.next()) {
@@ -235,30 +516,24 @@ public class Query extends QueryAbstract {
     return numEquivalentUsernames != 0;
   }
 
-  // Returns true if parameterized username and password matches a registered
-  //    username/password combination
-  private boolean matchingLogin(String username, String password) throws SQLException {
+  // Returns the salted password hash of the parameterized user (matched case-insensitively),
+  //    or null if there is no such user
+  private byte[] storedPasswordHash(String username) throws SQLException {
     matchingUsernameStmt.clearParameters();
-    matchingUsernameStmt.setString(1, username);
-    ResultSet results = matchingUsernameStmt.executeQuery();
-    while (results.next()) {
-      byte[] storedHash = results.getBytes("password");
-      results.close();
-      return managePassword.plaintextMatchesSaltedHash(password, storedHash);
+    matchingUsernameStmt.setString(1, UsernameFilter.normalize(username));
+    try (ResultSet results = matchingUsernameStmt.executeQuery()) {
+      return results.next() ? results.getBytes("password") : null;
     }
-    return false;
   }
 
   // Adds user to database
-  private void addUser(String username, String password, int initAmount) throws SQLException {
+  private void addUser(String username, byte[] passwordHash, int initAmount) throws SQLException {
     addUserStmt.clearParameters();
     addUserStmt.setString(1, username);
-    addUserStmt.setBytes(2, managePassword.saltAndHashPassword(password));
-    addUserStmt.setInt(3, initAmount);
-    conn.setAutoCommit(false);
+    addUserStmt.setString(2, UsernameFilter.normalize(username));
+    addUserStmt.setBytes(3, passwordHash);
+    addUserStmt.setInt(4, initAmount);
     addUserStmt.executeUpdate();
-    conn.commit();
-    conn.setAutoCommit(true);
   }
 
   /**
@@ -269,6 +544,10 @@ public class Query extends QueryAbstract {
    * otherwise is searches for direct flights and flights with two "hops." Only searches for up
    * to the number of itineraries given by {@code numberOfItineraries}.
    *
+   * When flightapp.max_legs is greater than 2 and the flight index is enabled, itineraries with
+   * connections may have up to that many "hops", optionally limited to flightapp.max_itinerary_minutes
+   * minutes in total.
+   *
    * The results are sorted based on total flight time.
    *
    * @param originCity
@@ -300,12 +579,12 @@ public class Query extends QueryAbstract {
     }
 
     try {
-      StringBuffer sb = findItineraries(originCity, destinationCity,
+      List<Compact> itineraries = findItineraries(originCity, destinationCity,
               dayOfMonth, numberOfItineraries, directFlight);
-      if (sb.length() == 0) {
+      if (itineraries.isEmpty()) {
         return "No flights match your selection\n";
       } else {
-        return sb.toString();
+        return ResponseWriter.reusable().itineraries(itineraries).toString();
       }
     } catch (SQLException e) {
       e.printStackTrace();
@@ -313,72 +592,276 @@ public class Query extends QueryAbstract {
     return "Failed to search\n";
   }
 
-  private StringBuffer findItineraries(String originCity, String destCity,
+  // Returns the ranked itineraries for a search, remembering them for booking if a user is
+  //    logged in
+  private List<Compact> findItineraries(String originCity, String destCity,
         int dayOfMonth, int numItineraries, boolean directFlight) throws SQLException {
-    ArrayList<Compact> itineraries = new ArrayList<>();
     providedItineraries.clear();
+    List<Compact> itineraries = null;
+    if (searchCache != null) {
+      itineraries = searchCache.get(originCity, destCity, directFlight, dayOfMonth,
+              numItineraries);
+    }
+    if (itineraries == null) {
+      itineraries = rankItineraries(originCity, destCity, dayOfMonth, numItineraries,
+              directFlight);
+      if (searchCache != null) {
+        searchCache.put(originCity, destCity, directFlight, dayOfMonth, numItineraries,
+                itineraries);
+      }
+    }
+
+    if (loggedIn) {
+      for (int i = 0; i < itineraries.size(); i++) {
+        providedItineraries.put(i, itineraries.get(i));
+      }
+    }
+    return itineraries;
+  }
+
+  /**
+   * Implements the batch search function.
+   *
+   * Requests are grouped by day and origin city. With the flight index enabled, the one-stop
+   * searches of a group share one pass over the origin's connecting routes; otherwise each
+   * request is ranked on its own. Results are cached like those of single searches.
+   *
+   * @param requests the searches to run
+   *
+   * @return one response per request, in request order, each in the format
+   *         {@link #transaction_search} returns
+   */
+  public List<String> transaction_searchBatch(List<SearchRequest> requests) {
+    List<List<Compact>> found = new ArrayList<>(Collections.nCopies(requests.size(), null));
+
+    // Requests the cache could not answer, grouped by day and origin city
+    Map<String, List<Integer>> groups = new LinkedHashMap<>();
+    for (int i = 0; i < requests.size(); i++) {
+      SearchRequest request = requests.get(i);
+      if (request.numberOfItineraries <= 0) {
+        continue;
+      }
+      List<Compact> cached = null;
+      if (searchCache != null) {
+        cached = searchCache.get(request.originCity, request.destinationCity,
+                request.directFlight, request.dayOfMonth, request.numberOfItineraries);
+      }
+      if (cached != null) {
+        found.set(i, cached);
+      } else {
+        groups.computeIfAbsent(request.dayOfMonth + " " + FlightIndex.cityKey(request.originCity),
+                key -> new ArrayList<>()).add(i);
+      }
+    }
+
+    for (List<Integer> group : groups.values()) {
+      if (flightIndex != null && multiHopSearch == null) {
+        rankGroup(requests, group, found);
+      } else {
+        for (int i : group) {
+          SearchRequest request = requests.get(i);
+          try {
+            found.set(i, rankItineraries(request.originCity, request.destinationCity,
+                    request.dayOfMonth, request.numberOfItineraries, request.directFlight));
+          } catch (SQLException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+      if (searchCache != null) {
+        for (int i : group) {
+          SearchRequest request = requests.get(i);
+          if (found.get(i) != null) {
+            searchCache.put(request.originCity, request.destinationCity, request.directFlight,
+                    request.dayOfMonth, request.numberOfItineraries, found.get(i));
+          }
+        }
+      }
+    }
+
+    List<String> responses = new ArrayList<>(requests.size());
+    for (List<Compact> itineraries : found) {
+      if (itineraries == null) {
+        responses.add("Failed to search\n");
+      } else if (itineraries.isEmpty()) {
+        responses.add("No flights match your selection\n");
+      } else {
+        responses.add(ResponseWriter.reusable().itineraries(itineraries).toString());
+      }
+    }
+    return responses;
+  }
+
+  // Ranks searches that share a day and origin city with the flight index, finding the one-stop
+  //    itineraries of all of them in a single scan
+  private void rankGroup(List<SearchRequest> requests, List<Integer> group,
+        List<List<Compact>> found) {
+    List<List<Compact>> directItineraries = new ArrayList<>(group.size());
+    List<String> destCities = new ArrayList<>(group.size());
+    int[] oneStopLimits = new int[group.size()];
+    for (int g = 0; g < group.size(); g++) {
+      SearchRequest request = requests.get(group.get(g));
+      List<Compact> direct = flightIndex.directItineraries(request.originCity,
+              request.destinationCity, request.dayOfMonth, request.numberOfItineraries);
+      directItineraries.add(direct);
+      destCities.add(request.destinationCity);
+      oneStopLimits[g] = request.directFlight ? 0 : request.numberOfItineraries - direct.size();
+    }
+
+    SearchRequest first = requests.get(group.get(0));
+    List<List<Compact>> oneStopItineraries = flightIndex.oneStopItineraries(first.originCity,
+            destCities, first.dayOfMonth, oneStopLimits);
+    for (int g = 0; g < group.size(); g++) {
+      found.set(group.get(g), mergeItineraries(requests.get(group.get(g)).numberOfItineraries,
+              Arrays.asList(directItineraries.get(g), oneStopItineraries.get(g))));
+    }
+  }
+
+  // Returns the best direct itineraries, followed by one-stop itineraries if there is room
+  //    left, ordered by total flight time
+  private List<Compact> rankItineraries(String originCity, String destCity,
+        int dayOfMonth, int numItineraries, boolean directFlight) throws SQLException {
+    if (flightIndex == null) {
+      try {
+        return runTransaction(SEARCH_ISOLATION, () -> queryItineraries(originCity, destCity,
+                dayOfMonth, numItineraries, directFlight));
+      } catch (IOException e) {
+        throw new SQLException(e);
+      }
+    }
+
+    List<Compact> directItineraries = flightIndex.directItineraries(originCity, destCity,
+            dayOfMonth, numItineraries);
+    List<Compact> oneStopItineraries = Collections.emptyList();
+    if (!directFlight && directItineraries.size() < numItineraries && multiHopSearch != null) {
+      oneStopItineraries = multiHopSearch.connectingItineraries(originCity, destCity,
+              dayOfMonth, numItineraries - directItineraries.size());
+    } else if (!directFlight && directItineraries.size() < numItineraries) {
+      oneStopItineraries = flightIndex.oneStopItineraries(originCity, destCity, dayOfMonth,
+              numItineraries - directItineraries.size());
+    }
+    return mergeItineraries(numItineraries, Arrays.asList(directItineraries, oneStopItineraries));
+  }
+
+  // rankItineraries for when the flight index is disabled, reading both kinds of itineraries
+  //    from the database
+  private List<Compact> queryItineraries(String originCity, String destCity,
+        int dayOfMonth, int numItineraries, boolean directFlight) throws SQLException {
+    List<Compact> directItineraries = queryDirectItineraries(originCity, destCity, dayOfMonth,
+            numItineraries);
+    List<Compact> oneStopItineraries = Collections.emptyList();
+    int numOneStops = numItineraries - directItineraries.size();
+    // -1 while the precomputed table is stale or too short, so the live join is used instead
+    int oneStopSlot = !directFlight && numOneStops > 0 && oneStopTable != null
+            ? oneStopTable.slotFor(numOneStops) : -1;
+    if (oneStopSlot >= 0) {
+      oneStopItineraries = queryPrecomputedOneStops(oneStopSlot, originCity, destCity,
+              dayOfMonth, numOneStops);
+    } else if (!directFlight && numOneStops > 0) {
+      oneStopItineraries = queryOneStopItineraries(originCity, destCity, dayOfMonth,
+              numOneStops);
+    }
+    return mergeItineraries(numItineraries, Arrays.asList(directItineraries, oneStopItineraries));
+  }
+
+  // Merges lists that are each already ordered by CompactComparator into a single list of at
+  //    most numItineraries itineraries. Ties go to the list that comes first, so direct
+  //    itineraries stay ahead of one-stop itineraries of the same duration.
+  private static List<Compact> mergeItineraries(int numItineraries, List<List<Compact>> sources) {
+    CompactComparator comparator = new CompactComparator();
+    // Each cursor is {source index, position in source}
+    PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, sources.size()), (c1, c2) -> {
+      int cmp = comparator.compare(sources.get(c1[0]).get(c1[1]), sources.get(c2[0]).get(c2[1]));
+      return cmp != 0 ? cmp : Integer.compare(c1[0], c2[0]);
+    });
+    // Sized by what the sources hold, since numItineraries may be far larger
+    int available = 0;
+    for (int i = 0; i < sources.size(); i++) {
+      available += sources.get(i).size();
+      if (!sources.get(i).isEmpty()) {
+        heads.add(new int[] {i, 0});
+      }
+    }
+
+    List<Compact> merged = new ArrayList<>(Math.max(0, Math.min(numItineraries, available)));
+    while (!heads.isEmpty() && merged.size() < numItineraries) {
+      int[] cursor = heads.poll();
+      List<Compact> source = sources.get(cursor[0]);
+      merged.add(source.get(cursor[1]));
+      if (++cursor[1] < source.size()) {
+        heads.add(cursor);
+      }
+    }
+    return merged;
+  }
+
+  // Returns up to numItineraries direct itineraries from the FLIGHTS table, shortest first
+  private List<Compact> queryDirectItineraries(String originCity, String destCity,
+        int dayOfMonth, int numItineraries) throws SQLException {
+    List<Compact> itineraries = new ArrayList<>();
     findDirectItineraryStmt.clearParameters();
-    findDirectItineraryStmt.setString(1, originCity);
-    findDirectItineraryStmt.setString(2, destCity);
-    findDirectItineraryStmt.setInt(3, dayOfMonth);
+    findDirectItineraryStmt.setInt(1, numItineraries);
+    findDirectItineraryStmt.setString(2, originCity);
+    findDirectItineraryStmt.setString(3, destCity);
+    findDirectItineraryStmt.setInt(4, dayOfMonth);
     ResultSet results = findDirectItineraryStmt.executeQuery();
-    int numProcessed = 0;
-    while (results.next() && numProcessed < numItineraries) {
-      int itineraryId = results.getInt("fid");
-      Flight flight = new Flight(itineraryId, results.getInt("day_of_month"),
+    while (results.next()) {
+      Flight flight = new Flight(results.getInt("fid"), results.getInt("day_of_month"),
               results.getString("carrier_id"), results.getInt("flight_num") + "",
               results.getString("origin_city"), results.getString("dest_city"),
               results.getInt("actual_time"), results.getInt("capacity"),
               results.getInt("price"));
-      Flight[] flights = {flight, null};
-      numProcessed++;
+      Flight[] flights = {flight};
       itineraries.add(new Compact(flights, results.getInt("actual_time")));
     }
     results.close();
+    return itineraries;
+  }
 
-    if (!directFlight && numProcessed < numItineraries) {
-      findIndirectItineraryStmt.clearParameters();
-      findIndirectItineraryStmt.setString(1, originCity);
-      findIndirectItineraryStmt.setString(2, destCity);
-      findIndirectItineraryStmt.setInt(3, dayOfMonth);
-      findIndirectItineraryStmt.setInt(4, dayOfMonth);
-      ResultSet results2 = findIndirectItineraryStmt.executeQuery();
-      while (results2.next() && numProcessed < numItineraries) {
-        Flight flight1 = new Flight(results2.getInt("f1_fid"), results2.getInt("f1_day_of_month"),
-                results2.getString("f1_carrier_id"), results2.getInt("f1_flight_num") + "",
-                results2.getString("f1_origin_city"), results2.getString("f1_dest_city"),
-                results2.getInt("f1_actual_time"), results2.getInt("f1_capacity"),
-                results2.getInt("f1_price"));
-        Flight flight2 = new Flight(results2.getInt("f2_fid"), results2.getInt("f2_day_of_month"),
-                results2.getString("f2_carrier_id"), results2.getInt("f2_flight_num") + "",
-                results2.getString("f2_origin_city"), results2.getString("f2_dest_city"),
-                results2.getInt("f2_actual_time"), results2.getInt("f2_capacity"),
-                results2.getInt("f2_price"));
-        Flight[] flights = {flight1, flight2};
-        numProcessed++;
-        itineraries.add(new Compact(flights, results2.getInt("total_time")));
-      }
-      results2.close();
-    }
-    StringBuffer sb = new StringBuffer();
-    numProcessed = 0;
-    Collections.sort(itineraries, new CompactComparator());
-    for (Compact itinerary : itineraries) {
-      if (itinerary.flights[1] == null) {
-        sb.append("Itinerary " + numProcessed + ": 1 flight(s), "
-                + itinerary.duration + " minutes\n"
-                + itinerary.flights[0] + "\n");
-      } else {
-        sb.append("Itinerary " + numProcessed + ": 2 flight(s), "
-                + itinerary.duration + " minutes\n"
-                + itinerary.flights[0] + "\n" + itinerary.flights[1] + "\n");
-      }
-      if (loggedIn) {
-        providedItineraries.put(numProcessed, itinerary.flights);
-      }
-      numProcessed++;
+  // Returns up to numItineraries one-stop itineraries from the FLIGHTS table, shortest first
+  private List<Compact> queryOneStopItineraries(String originCity, String destCity,
+        int dayOfMonth, int numItineraries) throws SQLException {
+    findIndirectItineraryStmt.clearParameters();
+    findIndirectItineraryStmt.setInt(1, numItineraries);
+    findIndirectItineraryStmt.setString(2, originCity);
+    findIndirectItineraryStmt.setString(3, destCity);
+    findIndirectItineraryStmt.setInt(4, dayOfMonth);
+    findIndirectItineraryStmt.setInt(5, dayOfMonth);
+    return readOneStopItineraries(findIndirectItineraryStmt.executeQuery());
+  }
+
+  // Returns up to numItineraries one-stop itineraries from the given slot of the precomputed
+  //    one-stop table, which must hold at least that many per city pair and day
+  private List<Compact> queryPrecomputedOneStops(int slot, String originCity, String destCity,
+        int dayOfMonth, int numItineraries) throws SQLException {
+    findPrecomputedOneStopsStmt.clearParameters();
+    findPrecomputedOneStopsStmt.setInt(1, numItineraries);
+    findPrecomputedOneStopsStmt.setInt(2, slot);
+    findPrecomputedOneStopsStmt.setString(3, originCity);
+    findPrecomputedOneStopsStmt.setString(4, destCity);
+    findPrecomputedOneStopsStmt.setInt(5, dayOfMonth);
+    return readOneStopItineraries(findPrecomputedOneStopsStmt.executeQuery());
+  }
+
+  // Reads and closes rows of f1_ and f2_ flight columns with their total_time
+  private List<Compact> readOneStopItineraries(ResultSet results) throws SQLException {
+    List<Compact> itineraries = new ArrayList<>();
+    while (results.next()) {
+      Flight flight1 = new Flight(results.getInt("f1_fid"), results.getInt("f1_day_of_month"),
+              results.getString("f1_carrier_id"), results.getInt("f1_flight_num") + "",
+              results.getString("f1_origin_city"), results.getString("f1_dest_city"),
+              results.getInt("f1_actual_time"), results.getInt("f1_capacity"),
+              results.getInt("f1_price"));
+      Flight flight2 = new Flight(results.getInt("f2_fid"), results.getInt("f2_day_of_month"),
+              results.getString("f2_carrier_id"), results.getInt("f2_flight_num") + "",
+              results.getString("f2_origin_city"), results.getString("f2_dest_city"),
+              results.getInt("f2_actual_time"), results.getInt("f2_capacity"),
+              results.getInt("f2_price"));
+      Flight[] flights = {flight1, flight2};
+      itineraries.add(new Compact(flights, results.getInt("total_time")));
     }
-    return sb;
+    results.close();
+    return itineraries;
   }
 
   /**
@@ -406,22 +889,56 @@ public class Query extends QueryAbstract {
     if (!providedItineraries.containsKey(itineraryId)) {
       return "No such itinerary " + itineraryId +"\n";
     }
-    int itid = 1;
-    int rid = 1;
+    Compact itinerary = providedItineraries.get(itineraryId);
+    if (itinerary.numFlights() > 2) {
+      // Itineraries_ckirby03 only has room for two legs
+      return "Booking failed\n";
+    }
+    int fid1 = itinerary.fid(0);
+    int fid2 = itinerary.numFlights() > 1 ? itinerary.fid(1) : 0;
+    long key = canonicalKey(fid1, fid2);
+    // Set by the transaction once it has found or added the itinerary
+    int[] itid = new int[1];
     try {
-      Statement statement = conn.createStatement();
-      conn.setAutoCommit(false);
-      String query = "SELECT itid FROM Itineraries_ckirby03 WHERE fid1 = "
-              + providedItineraries.get(itineraryId)[0].fid;
-      if (providedItineraries.get(itineraryId)[1] != null) {
-        query += "AND fid2 = " + providedItineraries.get(itineraryId)[1].fid;
+      String response = null;
+      Integer cachedItid = CANONICAL_ITINERARIES.get(key);
+      if (cachedItid != null) {
+        response = bookItinerary(itinerary, cachedItid, 0, itid);
+        if (response == null) {
+          // The cached row is gone, e.g. cleared by another process; find or add it again
+          CANONICAL_ITINERARIES.remove(key, cachedItid);
+        }
       }
-      ResultSet results = statement.executeQuery(query);
-      if (results.next()) {
-        itid = results.getInt("itid");
+      if (response == null) {
+        // Taken before the transaction, since a new block of IDs is taken on a connection of
+        //    its own; it goes unused if the itinerary turns out to exist already
+        response = bookItinerary(itinerary, 0, idAllocator.nextItineraryId(), itid);
       }
-      results.close();
-      findDayAndMonthFromIdStmt.setInt(1, providedItineraries.get(itineraryId)[0].fid);
+      if (response == null) {
+        return "Booking failed\n";
+      }
+
+      if (response.startsWith("Booked")) {
+        CANONICAL_ITINERARIES.put(key, itid[0]);
+      }
+      return response;
+    } catch (SQLException | IOException e) {
+      e.printStackTrace();
+    }
+    return "Booking failed\n";
+  }
+
+  // Books the itinerary for the logged-in user in one transaction, using knownItid as its
+  //    Itineraries row if it is not 0, and otherwise finding the row or adding it with ID
+  //    spareItid. Sets itid[0] to the row used. Returns the response to the user, or null if
+  //    the row turned out not to exist.
+  private String bookItinerary(Compact itinerary, int knownItid, int spareItid, int[] itid)
+        throws SQLException, IOException {
+    int fid1 = itinerary.fid(0);
+    int fid2 = itinerary.numFlights() > 1 ? itinerary.fid(1) : 0;
+    return runTransaction(BOOK_ISOLATION, () -> {
+      int userVersion = OPTIMISTIC_BOOKING ? readUserVersion() : 0;
+      findDayAndMonthFromIdStmt.setInt(1, fid1);
       ResultSet results2 = findDayAndMonthFromIdStmt.executeQuery();
       results2.next();
       int month = results2.getInt("month_id");
@@ -431,93 +948,43 @@ public class Query extends QueryAbstract {
       numItinerariesByDayUserStmt.setInt(2, month);
       numItinerariesByDayUserStmt.setInt(3, day);
       ResultSet results3 = numItinerariesByDayUserStmt.executeQuery();
-      if (results3.next()) {
-        conn.commit();
-        conn.setAutoCommit(true);
+      boolean sameDay = results3.next();
+      results3.close();
+      if (sameDay) {
         return "You cannot book two flights in the same day\n";
       }
-      results3.close();
 
-      String query2 = "SELECT MAX(itid) FROM Itineraries_ckirby03";
-      ResultSet results4 = statement.executeQuery(query2);
-      if (results4.next()) {
-        itid = results4.getInt(1) + 1;
-      }
-      addItineraryStmt.setInt(1, itid);
-      addItineraryStmt.setInt(2, providedItineraries.get(itineraryId)[0].fid);
-      if (providedItineraries.get(itineraryId)[1] == null) {
-        addItineraryStmt.setNull(3, java.sql.Types.INTEGER);
-      } else {
-        addItineraryStmt.setInt(3, providedItineraries.get(itineraryId)[1].fid);
-      }
-      addItineraryStmt.executeUpdate();
-      String query3 = "SELECT MAX(rid) FROM Reservations_ckirby03";
-      ResultSet results5 = statement.executeQuery(query3);
-      if (results5.next()) {
-        rid = results5.getInt(1) + 1;
-      }
+      itid[0] = knownItid != 0 ? knownItid : canonicalItinerary(fid1, fid2, spareItid);
 
-      String query4 = "SELECT capacity - COUNT(*) " +
-              "FROM Reservations_ckirby03 r " +
-              "JOIN Itineraries_ckirby03 i ON r.itid = i.itid " +
-              "JOIN FLIGHTS f ON i.fid1 = f.fid OR i.fid2 = f.fid " +
-              "WHERE fid = " + providedItineraries.get(itineraryId)[0].fid +
-              " GROUP BY capacity";
-      ResultSet results6 = statement.executeQuery(query4);
-
-      if (results6.next()) {
-        if (results6.getInt(1) <= 0) {
-          results6.close();
-          conn.commit();
-          conn.setAutoCommit(true);
-          return "Booking failed\n";
+      for (int leg = 0; leg < itinerary.numFlights(); leg++) {
+        boolean reserved = OPTIMISTIC_BOOKING
+                ? reserveSeatOptimistically(itinerary.fid(leg), itinerary.capacity(leg))
+                : reserveSeat(itinerary.fid(leg), itinerary.capacity(leg));
+        if (!reserved) {
+          throw new RollbackException("Booking failed\n");
         }
       }
-      if (providedItineraries.get(itineraryId)[1] != null) {
-        String query5 = "SELECT capacity - COUNT(*) " +
-                "FROM Reservations_ckirby03 r " +
-                "JOIN Itineraries_ckirby03 i ON r.itid = i.itid " +
-                "JOIN FLIGHTS f ON i.fid1 = f.fid OR i.fid2 = f.fid " +
-                "WHERE fid = " + providedItineraries.get(itineraryId)[1].fid +
-                " GROUP BY capacity";
-        ResultSet results7 = statement.executeQuery(query5);
-        if (results7.next()) {
-          if (results7.getInt(1) <= 0) {
-            results7.close();
-            conn.commit();
-            conn.setAutoCommit(true);
-            return "Booking failed\n";
-          }
+      if (OPTIMISTIC_BOOKING) {
+        // Fails if another booking by this user committed since the same-day check
+        updateUserVersionStmt.setString(1, user);
+        updateUserVersionStmt.setInt(2, userVersion);
+        if (updateUserVersionStmt.executeUpdate() != 1) {
+          throw serializationFailure("Concurrent booking by " + user);
         }
       }
 
+      // Taken last, so the counter row is locked for as short a time as possible
+      int rid = IdAllocator.takeReservationId(takeIdsStmt);
       makeNewReservationStmt.setInt(1, rid);
       makeNewReservationStmt.setString(2, user);
-      makeNewReservationStmt.setInt(3, itid);
-      makeNewReservationStmt.executeUpdate();
-      conn.commit();
-      conn.setAutoCommit(true);
-      return "Booked flight(s), reservation ID: " + rid + "\n";
-
-    } catch (SQLException e) {
-
-      try {
-        conn.rollback();
-        conn.setAutoCommit(true);
-      } catch (SQLException a) {
-        a.printStackTrace();
-        return "Booking failed\n";
+      makeNewReservationStmt.setInt(3, itid[0]);
+      makeNewReservationStmt.setInt(4, fid1);
+      makeNewReservationStmt.setInt(5, fid2);
+      if (makeNewReservationStmt.executeUpdate() != 1) {
+        throw new RollbackException(null);
       }
-      if (isDeadlock(e)) {
-        try {
-          Thread.sleep((long)Math.random() * 5000);
-        } catch (InterruptedException e2) {
-
-        }
-        return transaction_book(itineraryId);
-      }
-    }
-    return "Booking failed\n";
+      return "Booked flight(s), reservation ID: " + rid + "\n";
+    });
   }
 
   /**
@@ -540,69 +1007,144 @@ public class Query extends QueryAbstract {
       return "Cannot pay, not logged in\n";
     }
     try {
-      retrieveUnpaidReservationStmt.setInt(1, reservationId);
-      ResultSet results = retrieveUnpaidReservationStmt.executeQuery();
-      if (!results.next()) {
-        results.close();
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + user + "\n";
-      }
-      if (!results.getString("username").equalsIgnoreCase(user)) {
+      return runTransaction(PAY_ISOLATION, () -> {
+        retrieveUnpaidReservationStmt.setInt(1, reservationId);
+        ResultSet results = retrieveUnpaidReservationStmt.executeQuery();
+        if (!results.next() || !results.getString("username").equalsIgnoreCase(user)) {
+          results.close();
+          return "Cannot find unpaid reservation " + reservationId + " under user: " + user + "\n";
+        }
+        int itineraryId = results.getInt("itid");
         results.close();
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + user + "\n";
-      }
-      int itineraryId = results.getInt("itid");
-      Statement statement = conn.createStatement();
-      String query = "SELECT fid1, fid2 FROM Itineraries_ckirby03 AS i WHERE i.itid = " + itineraryId;
-      ResultSet results2 = statement.executeQuery(query);
-      results2.next();
-      int flightId1 = results2.getInt("fid1");
-      int flightId2 = results2.getInt("fid2");
-      results2.close();
-      int price = flightPrice(flightId1);
-      if (flightId2 != 0) {
-        price += flightPrice(flightId2);
-      }
-      retrieveBalanceStmt.setString(1, user);
-      ResultSet results3 = retrieveBalanceStmt.executeQuery();
-      results3.next();
-      int balance = results3.getInt("balance");
-      results3.close();
-      if (balance < price) {
-        return "User has only " + balance + " in account but itinerary costs " + price + "\n";
+        try (Statement statement = conn.createStatement()) {
+          String query = "SELECT fid1, fid2 FROM Itineraries_ckirby03 AS i WHERE i.itid = " + itineraryId;
+          ResultSet results2 = statement.executeQuery(query);
+          results2.next();
+          int flightId1 = results2.getInt("fid1");
+          int flightId2 = results2.getInt("fid2");
+          results2.close();
+          int price = flightPrice(flightId1);
+          if (flightId2 != 0) {
+            price += flightPrice(flightId2);
+          }
+          retrieveBalanceStmt.setString(1, user);
+          ResultSet results3 = retrieveBalanceStmt.executeQuery();
+          results3.next();
+          int balance = results3.getInt("balance");
+          results3.close();
+          if (balance < price) {
+            return "User has only " + balance + " in account but itinerary costs " + price + "\n";
+          }
+          updateBalanceStmt.setInt(1, balance);
+          updateBalanceStmt.setInt(2, price);
+          updateBalanceStmt.setString(3, user);
+          updateBalanceStmt.executeUpdate();
+          String query2 = "UPDATE Reservations_ckirby03 SET paid = 1";
+          statement.executeUpdate(query2);
+          return "Paid reservation: " + reservationId + " remaining balance: " + (balance - price) + "\n";
+        }
+      });
+    } catch (SQLException | IOException e) {
+      e.printStackTrace();
+    }
+    return "Failed to pay for reservation " + reservationId + "\n";
+  }
+
+  // Returns the version of the logged-in user's row
+  private int readUserVersion() throws SQLException {
+    readUserVersionStmt.setString(1, user);
+    try (ResultSet results = readUserVersionStmt.executeQuery()) {
+      results.next();
+      return results.getInt("version");
+    }
+  }
+
+  // Takes one seat on the given flight in the current transaction if the flight's counter has
+  //    not changed since it was read, returning false if the flight is already full
+  private boolean reserveSeatOptimistically(int fid, int capacity) throws SQLException {
+    readSeatsStmt.setInt(1, fid);
+    int booked = 0;
+    int version = -1;
+    try (ResultSet results = readSeatsStmt.executeQuery()) {
+      if (results.next()) {
+        booked = results.getInt("booked");
+        version = results.getInt("version");
       }
-      updateBalanceStmt.setInt(1, balance);
-      updateBalanceStmt.setInt(2, price);
-      updateBalanceStmt.setString(3, user);
-      conn.setAutoCommit(false);
-      updateBalanceStmt.executeUpdate();
-      String query2 = "UPDATE Reservations_ckirby03 SET paid = 1";
-      statement.executeUpdate(query2);
-      conn.commit();
-      conn.setAutoCommit(true);
-      return "Paid reservation: " + reservationId + " remaining balance: " + (balance - price) + "\n";
-    } catch (SQLException e) {
-      try {
-        conn.rollback();
-        conn.setAutoCommit(true);
-      } catch (SQLException a) {
-        return "Failed to pay for reservation " + reservationId + "\n";
+    }
+    if (booked >= capacity) {
+      return false;
+    }
+    if (version < 0) {
+      // A concurrent first booking of the flight makes this fail with a retryable key violation
+      addSeatsStmt.setInt(1, fid);
+      addSeatsStmt.executeUpdate();
+    } else {
+      updateSeatsStmt.setInt(1, fid);
+      updateSeatsStmt.setInt(2, version);
+      if (updateSeatsStmt.executeUpdate() != 1) {
+        throw serializationFailure("Concurrent booking of flight " + fid);
       }
-      if (isDeadlock(e)) {
-        return transaction_pay(reservationId);
+    }
+    return true;
+  }
+
+  // Returns the ID of the one Itineraries row for the given flights, adding it with ID spareItid
+  //    in the current transaction if no booking has used them yet. fid2 is 0 for direct
+  //    itineraries.
+  private int canonicalItinerary(int fid1, int fid2, int spareItid) throws SQLException {
+    PreparedStatement find = fid2 == 0 ? findDirectItineraryIdStmt : findOneStopItineraryIdStmt;
+    find.clearParameters();
+    find.setInt(1, fid1);
+    if (fid2 != 0) {
+      find.setInt(2, fid2);
+    }
+    try (ResultSet results = find.executeQuery()) {
+      if (results.next()) {
+        return results.getInt("itid");
       }
     }
-    return "Failed to pay for reservation " + reservationId + "\n";
+    addItineraryStmt.clearParameters();
+    addItineraryStmt.setInt(1, spareItid);
+    addItineraryStmt.setInt(2, fid1);
+    if (fid2 == 0) {
+      addItineraryStmt.setNull(3, java.sql.Types.INTEGER);
+    } else {
+      addItineraryStmt.setInt(3, fid2);
+    }
+    addItineraryStmt.executeUpdate();
+    return spareItid;
+  }
+
+  private static long canonicalKey(int fid1, int fid2) {
+    return ((long) fid1 << 32) | (fid2 & 0xFFFFFFFFL);
+  }
+
+  // Takes one seat on the given flight in the current transaction, returning false if the
+  //    flight is already full
+  private boolean reserveSeat(int fid, int capacity) throws SQLException {
+    reserveSeatStmt.clearParameters();
+    reserveSeatStmt.setInt(1, fid);
+    reserveSeatStmt.setInt(2, capacity);
+    return reserveSeatStmt.executeUpdate() == 1;
   }
 
   // Returns price of flight having the parameterized flight ID
   private int flightPrice(int flightId) throws SQLException {
-    Statement statement = conn.createStatement();
-    String query = "SELECT price FROM FLIGHTS WHERE fid = " + flightId;
-    ResultSet results = statement.executeQuery(query);
-    results.next();
-    int price = results.getInt("price");
-    results.close();
-    return price;
+    if (flightIndex != null) {
+      FlightStore store = flightIndex.store();
+      int row = store.rowOf(flightId);
+      if (row >= 0) {
+        return store.price(row);
+      }
+    }
+    try (Statement statement = conn.createStatement()) {
+      String query = "SELECT price FROM FLIGHTS WHERE fid = " + flightId;
+      ResultSet results = statement.executeQuery(query);
+      results.next();
+      int price = results.getInt("price");
+      results.close();
+      return price;
+    }
   }
 
   /**
@@ -628,49 +1170,46 @@ public class Query extends QueryAbstract {
       return "Cannot view reservations, not logged in\n";
     }
     try {
-      retrieveUserReservationInfoStmt.setString(1, user);
-      ResultSet results = retrieveUserReservationInfoStmt.executeQuery();
-      StringBuffer sb = new StringBuffer();
-      if (!results.next()) {
-        return "No reservations found\n";
-      } else {
-        sb = outputReservations(sb, results);
-        while (results.next()) {
-          sb = outputReservations(sb, results);
+      return runTransaction(RESERVATIONS_ISOLATION, () -> {
+        retrieveUserReservationInfoStmt.setString(1, user);
+        try (ResultSet results = retrieveUserReservationInfoStmt.executeQuery()) {
+          if (!results.next()) {
+            return "No reservations found\n";
+          }
+          ResponseWriter writer = ResponseWriter.reusable();
+          outputReservations(writer, results);
+          while (results.next()) {
+            outputReservations(writer, results);
+          }
+          return writer.toString();
         }
-      }
-      results.close();
-      return sb.toString();
-    } catch (SQLException e) {
+      });
+    } catch (SQLException | IOException e) {
       e.printStackTrace();
     }
     return "Failed to retrieve reservations\n";
   }
 
-  private StringBuffer outputReservations(StringBuffer sb, ResultSet results) throws SQLException {
-    boolean paid = (results.getInt("paid") == 1);
-    sb.append("Reservation " + results.getInt("rid")+ " paid: " + paid + ":\n" +
-            "ID: " + results.getInt("f1_fid") +
-            " Day: " + results.getInt("f1_day_of_month") +
-            " Carrier: " + results.getString("f1_carrier_id") +
-            " Number: " + results.getInt("f1_flight_num") +
-            " Origin: " + results.getString("f1_origin_city") +
-            " Dest: " + results.getString("f1_dest_city") +
-            " Duration: " + results.getInt("f1_actual_time") +
-            " Capacity: " + results.getInt("f1_capacity") +
-            " Price: " + results.getInt("f1_price") + "\n");
+  private void outputReservations(ResponseWriter writer, ResultSet results) throws SQLException {
+    writer.reservation(results.getInt("rid"), results.getInt("paid") == 1);
+    outputReservedFlight(writer, results, "f1_");
     if (results.getInt("f2_fid") != 0) {
-      sb.append("ID: " + results.getInt("f2_fid") +
-              " Day: " + results.getInt("f2_day_of_month") +
-              " Carrier: " + results.getString("f2_carrier_id") +
-              " Number: " + results.getInt("f2_flight_num") +
-              " Origin: " + results.getString("f2_origin_city") +
-              " Dest: " + results.getString("f2_dest_city") +
-              " Duration: " + results.getInt("f2_actual_time") +
-              " Capacity: " + results.getInt("f2_capacity") +
-              " Price: " + results.getInt("f2_price") + "\n");
+      outputReservedFlight(writer, results, "f2_");
+    }
+  }
+
+  // Writes the flight whose columns carry the given prefix, reading them only when the flight's
+  //    line is not cached yet
+  private void outputReservedFlight(ResponseWriter writer, ResultSet results, String prefix)
+        throws SQLException {
+    if (!writer.cachedFlight(results.getInt(prefix + "fid"))) {
+      writer.flight(new Flight(results.getInt(prefix + "fid"),
+              results.getInt(prefix + "day_of_month"), results.getString(prefix + "carrier_id"),
+              results.getInt(prefix + "flight_num") + "", results.getString(prefix + "origin_city"),
+              results.getString(prefix + "dest_city"), results.getInt(prefix + "actual_time"),
+              results.getInt(prefix + "capacity"), results.getInt(prefix + "price")));
     }
-    return sb;
+    writer.append("\n");
   }
 
   /**
@@ -688,16 +1227,25 @@ public class Query extends QueryAbstract {
   }
 
   /**
-   * Utility function to determine whether an error was caused by a deadlock
+   * Deadlocks and version conflicts are retried, and so are unique key violations: they happen when another
+   * session adds the same user or itinerary first, and the retry then sees its row.
+   */
+  @Override
+  protected boolean isRetryable(SQLException e) {
+    return super.isRetryable(e) || isDuplicateKey(e);
+  }
+
+  /**
+   * Utility function to determine whether an error was caused by a unique key violation
    */
-  private static boolean isDeadlock(SQLException e) {
-    return e.getErrorCode() == 1205;
+  private static boolean isDuplicateKey(SQLException e) {
+    return e.getErrorCode() == 2627 || e.getErrorCode() == 2601;
   }
 
   /**
    * A class to store information about a single flight
    */
-  class Flight {
+  static class Flight {
     public int fid;
     public int dayOfMonth;
     public String carrierId;
@@ -729,21 +1277,57 @@ public class Query extends QueryAbstract {
     }
   }
 
-  // Compactly stores a Flight[2] and the cumulative duration of all non-null flights
-  //      in that array
-  public class Compact {
+  // Compactly stores the legs of an itinerary, in flying order, and the cumulative duration
+  //      of all of them. Legs found through the flight index are kept as rows of its store and
+  //      only turned into Flight objects when they are printed.
+  public static class Compact {
 
-    public Query.Flight[] flights;
-    public int duration;
+    private final FlightStore store;
+    private final int[] rows;
+    private final Query.Flight[] flights;
+    public final int duration;
 
     public Compact(Query.Flight[] flights, int duration) {
+      this.store = null;
+      this.rows = null;
       this.flights = flights;
       this.duration = duration;
     }
+
+    Compact(FlightStore store, int[] rows, int duration) {
+      this.store = store;
+      this.rows = rows;
+      this.flights = null;
+      this.duration = duration;
+    }
+
+    public int numFlights() {
+      return rows != null ? rows.length : flights.length;
+    }
+
+    public int fid(int leg) {
+      return rows != null ? store.fid(rows[leg]) : flights[leg].fid;
+    }
+
+    public int capacity(int leg) {
+      return rows != null ? store.capacity(rows[leg]) : flights[leg].capacity;
+    }
+
+    public Query.Flight flight(int leg) {
+      return rows != null ? store.flight(rows[leg]) : flights[leg];
+    }
+
+    void writeFlight(int leg, ResponseWriter writer) {
+      if (rows != null) {
+        writer.flight(store, rows[leg]);
+      } else {
+        writer.flight(flights[leg]);
+      }
+    }
   }
 
   // Compact objects should be compared using duration field
-  private class CompactComparator implements Comparator<Compact> {
+  private static class CompactComparator implements Comparator<Compact> {
 
     public int compare(Compact obj1, Compact obj2) {
 
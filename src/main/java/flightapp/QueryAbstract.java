@@ -3,33 +3,140 @@ package flightapp;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.*;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class QueryAbstract {
-  // DB Connection
+  // DB Connection, borrowed from the pool for the length of each transaction and null between
+  //    transactions, so searches served from memory, password hashing and response rendering
+  //    never hold one
   protected Connection conn;
+  private final ConnectionPool pool;
+  private ConnectionPool.Pooled borrowed;
+  // Number of nested borrowConnection calls using the borrowed connection
+  private int borrowDepth;
+  private boolean connectionBroken;
 
-  // For checking for dangling transactions
+  // For checking for dangling transactions. Transactions are tracked on the client; the strict
+  //    check also asks the server each time a connection is given back.
   private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
-  private PreparedStatement tranCountStatement;
+  private final boolean strictTransactionCheck;
+
+  // Retry policy of runTransaction
+  private static final String SERIALIZATION_FAILURE = "40001";
+  // Isolation level argument that keeps the connection's own level
+  private static final int DEFAULT_ISOLATION = -1;
+  private static final TransactionMetrics METRICS = new TransactionMetrics();
+  private final int maxAttempts;
+  private final long baseBackoffMillis;
+  private final long maxBackoffMillis;
 
   protected QueryAbstract() throws SQLException, IOException {
-    this.conn = DBConnUtils.openConnection();
-    tranCountStatement = conn.prepareStatement(TRANCOUNT_SQL);
+    pool = ConnectionPool.getInstance();
+    strictTransactionCheck = DBConnUtils.getBooleanProperty("flightapp.strict_transaction_check",
+        false);
+    maxAttempts = Math.max(1, DBConnUtils.getIntProperty("flightapp.transaction_max_attempts", 5));
+    baseBackoffMillis = Math.max(1, DBConnUtils.getIntProperty("flightapp.transaction_backoff_ms", 10));
+    maxBackoffMillis = Math.max(baseBackoffMillis,
+        DBConnUtils.getIntProperty("flightapp.transaction_max_backoff_ms", 1000));
   }
 
   /**
-   * Get underlying connection
+   * Get underlying connection, or null outside of a transaction
    */
   public Connection getConnection() {
     return conn;
   }
 
   /**
-   * Closes the application-to-database connection
+   * Gives back a connection still borrowed from the pool. Sessions only hold a connection
+   * while a transaction runs, so this normally has nothing to do.
    */
   public void closeConnection() throws SQLException {
-    conn.close();
+    if (borrowed != null) {
+      borrowDepth = 0;
+      releaseConnection();
+    }
+  }
+
+  /**
+   * Borrows a connection from the pool for work done outside {@link #runTransaction}, such as
+   * {@link #clearTables}, and points {@link #conn} and the prepared statements at it. Calls
+   * nest: only the outermost one borrows, and each must be matched by a call to
+   * {@link #releaseConnection}.
+   *
+   * @throws IllegalStateException if no connection can be borrowed
+   */
+  protected final void borrowConnection() {
+    try {
+      acquireConnection();
+    } catch (SQLException | IOException e) {
+      throw new IllegalStateException("Database error", e);
+    }
+  }
+
+  // borrowConnection for callers that report database errors themselves
+  private void acquireConnection() throws SQLException, IOException {
+    if (borrowDepth++ > 0) {
+      return;
+    }
+    try {
+      borrowed = pool.borrow();
+      conn = borrowed.connection();
+      connectionBroken = false;
+      prepareStatements();
+    } catch (SQLException | IOException | RuntimeException e) {
+      connectionBroken = true;
+      releaseConnection();
+      throw e;
+    }
+  }
+
+  /**
+   * Ends a call to {@link #borrowConnection}. Once the outermost call ends, checks that no
+   * transaction was left open and gives the connection back to the pool.
+   *
+   * @throws IllegalStateException if a transaction was left open
+   */
+  protected final void releaseConnection() {
+    if (--borrowDepth > 0) {
+      return;
+    }
+    borrowDepth = 0;
+    ConnectionPool.Pooled pooled = borrowed;
+    try {
+      if (pooled != null && !connectionBroken) {
+        checkDanglingTransaction();
+      }
+    } finally {
+      borrowed = null;
+      conn = null;
+      if (pooled != null) {
+        if (connectionBroken) {
+          pool.discard(pooled);
+        } else {
+          pool.release(pooled);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the borrowed connection's prepared statement for the given SQL. Statements are
+   * cached per pooled connection, so each is prepared once per connection rather than once per
+   * session.
+   */
+  protected final PreparedStatement prepare(String sql) throws SQLException {
+    return borrowed.prepare(sql);
+  }
+
+  /**
+   * Called each time a connection is borrowed, to point the session's prepared statements at
+   * it with {@link #prepare}
+   */
+  protected void prepareStatements() throws SQLException {
   }
 
   /**
@@ -38,12 +145,13 @@ public abstract class QueryAbstract {
    * WARNING! Do not drop any tables and do not clear the flights table.
    */
   public final void clearTablesWrap() {
+    borrowConnection();
     try {
       clearTables();
     } catch (SQLException e) {
       throw new RuntimeException(e);
     } finally {
-      checkDanglingTransaction();
+      releaseConnection();
     }
   }
 
@@ -59,15 +167,53 @@ public abstract class QueryAbstract {
    *         errors, return "Login failed\n". Otherwise, return "Logged in as [username]\n".
    */
   public final String login(String username, String password) {
-    try {
-      return transaction_login(username, password);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return transaction_login(username, password);
   }
 
   public abstract String transaction_login(String username, String password);
 
+  /**
+   * Issues a session token for the logged-in user, which {@link #loginWithToken} accepts in
+   * place of the password until it expires or is revoked.
+   *
+   * @return If no user has logged in, then return "Cannot issue session token, not logged in\n".
+   *         For all other errors, return "Failed to issue session token\n". Otherwise, return
+   *         "Session token: [token]\n".
+   */
+  public final String sessionToken() {
+    return transaction_sessionToken();
+  }
+
+  public abstract String transaction_sessionToken();
+
+  /**
+   * Logs in the user a session token was issued to, without checking their password.
+   *
+   * @param token a token returned by {@link #sessionToken}
+   *
+   * @return If someone has already logged in, then return "User already logged in\n". If the
+   *         token is invalid, expired or revoked, or for any other error, return "Login
+   *         failed\n". Otherwise, return "Logged in as [username]\n".
+   */
+  public final String loginWithToken(String token) {
+    return transaction_loginWithToken(token);
+  }
+
+  public abstract String transaction_loginWithToken(String token);
+
+  /**
+   * Revokes every session token issued to the logged-in user so far.
+   *
+   * @return If no user has logged in, then return "Cannot revoke session tokens, not logged
+   *         in\n". For all other errors, return "Failed to revoke session tokens\n". Otherwise,
+   *         return "Revoked session tokens of [username]\n".
+   */
+  public final String revokeSessionTokens() {
+    return transaction_revokeSessionTokens();
+  }
+
+  public abstract String transaction_revokeSessionTokens();
+
   /**
    * Implement the create user function.
    *
@@ -79,11 +225,7 @@ public abstract class QueryAbstract {
    * @return either "Created user {@code username}\n" or "Failed to create user\n" if failed.
    */
   public final String createCustomer(String username, String password, int initAmount) {
-    try {
-      return transaction_createCustomer(username, password, initAmount);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return transaction_createCustomer(username, password, initAmount);
   }
 
   public abstract String transaction_createCustomer(String username, String password, int initAmount);
@@ -120,16 +262,50 @@ public abstract class QueryAbstract {
    */
   public final String search(String originCity, String destinationCity, boolean directFlight,
                                    int dayOfMonth, int numberOfItineraries) {
-    try {
-      return transaction_search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return transaction_search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
   }
 
   public abstract String transaction_search(String originCity, String destinationCity, boolean directFlight,
                                             int dayOfMonth, int numberOfItineraries);
 
+  /**
+   * Implements the batch search function.
+   *
+   * Runs many searches at once. Each request is answered exactly as {@link #search} would answer
+   * it, but requests that share a day and origin city may be served by a single scan of the
+   * flights. Batch searches do not replace the itineraries available to {@link #book}.
+   *
+   * @param requests the searches to run
+   *
+   * @return one response per request, in request order, each in the format {@link #search}
+   *         returns
+   */
+  public final List<String> searchBatch(List<SearchRequest> requests) {
+    return transaction_searchBatch(requests);
+  }
+
+  public abstract List<String> transaction_searchBatch(List<SearchRequest> requests);
+
+  /**
+   * The parameters of one search in a batch, as passed to {@link #search}
+   */
+  public static class SearchRequest {
+    public final String originCity;
+    public final String destinationCity;
+    public final boolean directFlight;
+    public final int dayOfMonth;
+    public final int numberOfItineraries;
+
+    public SearchRequest(String originCity, String destinationCity, boolean directFlight,
+                         int dayOfMonth, int numberOfItineraries) {
+      this.originCity = originCity;
+      this.destinationCity = destinationCity;
+      this.directFlight = directFlight;
+      this.dayOfMonth = dayOfMonth;
+      this.numberOfItineraries = numberOfItineraries;
+    }
+  }
+
   /**
    * Implements the book itinerary function.
    *
@@ -148,11 +324,7 @@ public abstract class QueryAbstract {
    *         increments by 1 each time a successful reservation is made by any user in the system.
    */
   public final String book(int itineraryId) {
-    try {
-      return transaction_book(itineraryId);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return transaction_book(itineraryId);
   }
 
   public abstract String transaction_book(int itineraryId);
@@ -173,11 +345,7 @@ public abstract class QueryAbstract {
    *         [balance]\n" where [balance] is the remaining balance in the user's account.
    */
   public final String pay(int reservationId) {
-    try {
-      return transaction_pay(reservationId);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return transaction_pay(reservationId);
   }
 
   public abstract String transaction_pay(int reservationId);
@@ -201,24 +369,242 @@ public abstract class QueryAbstract {
    * @see Query.Flight#toString()
    */
   public final String reservations() {
+    return transaction_reservations();
+  }
+
+  public abstract String transaction_reservations();
+
+  /**
+   * The body of a transaction run by {@link #runTransaction}
+   */
+  @FunctionalInterface
+  protected interface TransactionBody<T> {
+    T run() throws SQLException, IOException, RollbackException;
+  }
+
+  /**
+   * Thrown by a transaction body to roll the transaction back and have runTransaction return
+   * the given result instead, e.g. a failure message once some of the work has been done
+   */
+  protected static class RollbackException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final Object result;
+
+    public RollbackException(Object result) {
+      super(null, null, false, false);
+      this.result = result;
+    }
+  }
+
+  /**
+   * Runs the body in a transaction and commits it. Each attempt borrows a connection from the
+   * pool and gives it back when it ends, unless the caller already holds one, so neither the
+   * work done around the transaction nor the wait between attempts keeps a connection from
+   * other sessions.
+   *
+   * If the body throws an SQLException that {@link #isRetryable} accepts, the transaction is
+   * rolled back and run again after a randomized, exponentially growing delay, up to
+   * flightapp.transaction_max_attempts attempts in all. Any other exception, or a retryable one
+   * on the last attempt, rolls the transaction back and is rethrown. The connection is back in
+   * auto-commit mode when this returns.
+   */
+  protected final <T> T runTransaction(TransactionBody<T> body) throws SQLException, IOException {
+    return runAttempts(DEFAULT_ISOLATION, body);
+  }
+
+  /**
+   * Like {@link #runTransaction(TransactionBody)}, but at the given {@code Connection}
+   * isolation level. The connection's own level is restored afterwards.
+   */
+  protected final <T> T runTransaction(int isolationLevel, TransactionBody<T> body)
+      throws SQLException, IOException {
+    return runAttempts(isolationLevel, body);
+  }
+
+  private <T> T runAttempts(int isolationLevel, TransactionBody<T> body)
+      throws SQLException, IOException {
+    for (int attempt = 1; ; attempt++) {
+      SQLException failure;
+      acquireConnection();
+      try {
+        return runAttempt(isolationLevel, body);
+      } catch (SQLException e) {
+        if (!isRetryable(e)) {
+          throw e;
+        }
+        if (attempt >= maxAttempts) {
+          METRICS.exhausted.incrementAndGet();
+          throw e;
+        }
+        failure = e;
+      } finally {
+        releaseConnection();
+      }
+      METRICS.retries.incrementAndGet();
+      backOff(attempt, failure);
+    }
+  }
+
+  // Runs the body once on the borrowed connection, committing it or rolling it back
+  @SuppressWarnings("unchecked")
+  private <T> T runAttempt(int isolationLevel, TransactionBody<T> body)
+      throws SQLException, IOException {
+    METRICS.attempts.incrementAndGet();
+    int defaultIsolation;
+    boolean changeIsolation;
+    try {
+      defaultIsolation = conn.getTransactionIsolation();
+      changeIsolation = isolationLevel != DEFAULT_ISOLATION && isolationLevel != defaultIsolation;
+      if (changeIsolation) {
+        conn.setTransactionIsolation(isolationLevel);
+      }
+      conn.setAutoCommit(false);
+    } catch (SQLException e) {
+      // The connection is in an unknown state, so it is not reused
+      connectionBroken = true;
+      throw e;
+    }
+    Exception failure = null;
     try {
-      return transaction_reservations();
+      T result = body.run();
+      conn.commit();
+      METRICS.commits.incrementAndGet();
+      return result;
+    } catch (RollbackException e) {
+      conn.rollback();
+      METRICS.rollbacks.incrementAndGet();
+      return (T) e.result;
+    } catch (SQLException | IOException | RuntimeException e) {
+      failure = e;
+      rollbackAfter(e);
+      throw e;
     } finally {
-      checkDanglingTransaction();
+      restoreConnection(changeIsolation, defaultIsolation, failure);
     }
   }
 
-  public abstract String transaction_reservations();
+  // Puts the connection back in auto-commit mode at its own isolation level. If that fails, the
+  //    error is added to the one that ended the transaction, if any, rather than replacing it,
+  //    and the connection is discarded instead of going back to the pool.
+  private void restoreConnection(boolean changeIsolation, int defaultIsolation, Exception cause) {
+    try {
+      conn.setAutoCommit(true);
+      if (changeIsolation) {
+        conn.setTransactionIsolation(defaultIsolation);
+      }
+    } catch (SQLException e) {
+      connectionBroken = true;
+      if (cause != null) {
+        cause.addSuppressed(e);
+      }
+    }
+  }
+
+  /**
+   * Whether a transaction that failed with the given error may succeed if run again. By
+   * default deadlock victims, snapshot update conflicts and other serialization failures
+   * (SQLSTATE 40001) are retried.
+   */
+  protected boolean isRetryable(SQLException e) {
+    return e.getErrorCode() == 1205 || e.getErrorCode() == 3960
+        || SERIALIZATION_FAILURE.equals(e.getSQLState());
+  }
+
+  /**
+   * Returns an error that makes runTransaction retry, for a transaction body that finds another
+   * transaction changed the data it read
+   */
+  protected static SQLException serializationFailure(String reason) {
+    return new SQLException(reason, SERIALIZATION_FAILURE);
+  }
+
+  /**
+   * Counters of the transactions run by every session in this process
+   */
+  public static TransactionMetrics transactionMetrics() {
+    return METRICS;
+  }
+
+  private void rollbackAfter(Exception cause) {
+    METRICS.rollbacks.incrementAndGet();
+    try {
+      conn.rollback();
+    } catch (SQLException e) {
+      connectionBroken = true;
+      cause.addSuppressed(e);
+    }
+  }
+
+  // Sleeps between half and all of base * 2^(attempt - 1) milliseconds, capped at the maximum
+  private void backOff(int attempt, SQLException cause) throws SQLException {
+    long ceiling = baseBackoffMillis << Math.min(attempt - 1, 20);
+    ceiling = Math.min(ceiling, maxBackoffMillis);
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw cause;
+    }
+  }
+
+  /**
+   * Counts of transaction attempts, outcomes and retries
+   */
+  public static class TransactionMetrics {
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong rollbacks = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    // Times a transaction body was started
+    public long attempts() {
+      return attempts.get();
+    }
+
+    public long commits() {
+      return commits.get();
+    }
+
+    public long rollbacks() {
+      return rollbacks.get();
+    }
+
+    // Times a failed attempt was followed by another one
+    public long retries() {
+      return retries.get();
+    }
+
+    // Transactions that failed with a retryable error on their last allowed attempt
+    public long exhausted() {
+      return exhausted.get();
+    }
+
+    @Override
+    public String toString() {
+      return "attempts=" + attempts() + " commits=" + commits() + " rollbacks=" + rollbacks()
+          + " retries=" + retries() + " exhausted=" + exhausted();
+    }
+  }
 
   /**
    * Throw IllegalStateException if transaction not completely complete, rollback.
    *
+   * Uses the borrowed connection's {@link TransactionTracker}, and also queries @@TRANCOUNT when
+   * flightapp.strict_transaction_check is set.
    */
   protected void checkDanglingTransaction() throws IllegalStateException {
+    TransactionTracker tracker = borrowed.tracker();
     try {
-      try (ResultSet rs = tranCountStatement.executeQuery()) {
-        rs.next();
-        int count = rs.getInt("tran_count");
+      try {
+        int count = tracker.dangling() ? 1 : 0;
+        if (strictTransactionCheck) {
+          try (ResultSet rs = prepare(TRANCOUNT_SQL).executeQuery()) {
+            rs.next();
+            count = Math.max(count, rs.getInt("tran_count"));
+          }
+        }
         if (count > 0) {
           throw new IllegalStateException(
               "\nTransaction not fully commited/rolledback. Number of transactions currently"
@@ -228,9 +614,11 @@ public abstract class QueryAbstract {
               + " the error string.\n");
         }
       } finally {
-        conn.setAutoCommit(true);
+        tracker.reset();
       }
     } catch (SQLException e) {
+      // Do not hand a connection that cannot run this back to the pool
+      connectionBroken = true;
       throw new IllegalStateException("Database error", e);
     }
   }
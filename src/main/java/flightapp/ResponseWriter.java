@@ -0,0 +1,160 @@
+package flightapp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes command responses straight to an {@link Appendable}, such as a {@code StringBuilder} or
+ * a {@code Writer}.
+ *
+ * Flight lines are rendered once per fid and shared by every session: a flight's row in FLIGHTS
+ * never changes, so neither does its line. Once the cache holds its maximum number of lines,
+ * further flights are written field by field without being cached.
+ */
+public class ResponseWriter {
+  static final int DEFAULT_MAX_CACHED_LINES = 65536;
+  // Per-thread buffers that grow past this many chars are not kept for reuse
+  private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+
+  private static final ConcurrentHashMap<Integer, String> FLIGHT_LINES =
+          new ConcurrentHashMap<>();
+  private static volatile int maxCachedLines = DEFAULT_MAX_CACHED_LINES;
+
+  private static final ThreadLocal<StringBuilder> BUFFERS =
+          ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+  private final Appendable out;
+
+  public ResponseWriter(Appendable out) {
+    this.out = out;
+  }
+
+  /**
+   * Returns a writer over this thread's reusable buffer, emptied. The buffer is shared by every
+   * writer the thread obtains this way, so its contents must be taken with {@link #toString}
+   * before the next call.
+   */
+  public static ResponseWriter reusable() {
+    StringBuilder buffer = BUFFERS.get();
+    if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+      buffer = new StringBuilder(1024);
+      BUFFERS.set(buffer);
+    }
+    buffer.setLength(0);
+    return new ResponseWriter(buffer);
+  }
+
+  public ResponseWriter append(CharSequence text) {
+    try {
+      out.append(text);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return this;
+  }
+
+  public ResponseWriter append(int value) {
+    if (out instanceof StringBuilder) {
+      ((StringBuilder) out).append(value);
+      return this;
+    }
+    return append(Integer.toString(value));
+  }
+
+  /**
+   * Writes itineraries in the format search returns them
+   */
+  public ResponseWriter itineraries(List<Query.Compact> itineraries) {
+    for (int i = 0; i < itineraries.size(); i++) {
+      Query.Compact itinerary = itineraries.get(i);
+      append("Itinerary ").append(i).append(": ").append(itinerary.numFlights())
+          .append(" flight(s), ").append(itinerary.duration).append(" minutes\n");
+      for (int leg = 0; leg < itinerary.numFlights(); leg++) {
+        itinerary.writeFlight(leg, this);
+        append("\n");
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Writes the header line of a reservation in the format reservations returns it
+   */
+  public ResponseWriter reservation(int reservationId, boolean paid) {
+    return append("Reservation ").append(reservationId).append(" paid: ")
+        .append(paid ? "true" : "false").append(":\n");
+  }
+
+  /**
+   * Writes the cached line of the given flight if there is one
+   *
+   * @return false if the flight has not been rendered yet
+   */
+  public boolean cachedFlight(int fid) {
+    String line = FLIGHT_LINES.get(fid);
+    if (line == null) {
+      return false;
+    }
+    append(line);
+    return true;
+  }
+
+  /**
+   * Writes a flight in the format of {@link Query.Flight#toString()}, without a line break
+   */
+  public ResponseWriter flight(Query.Flight flight) {
+    if (!cachedFlight(flight.fid)) {
+      writeFlight(flight.fid, flight.dayOfMonth, flight.carrierId, flight.flightNum,
+          flight.originCity, flight.destCity, flight.time, flight.capacity, flight.price);
+    }
+    return this;
+  }
+
+  /**
+   * Writes the flight in the given row of a store, without materializing it
+   */
+  ResponseWriter flight(FlightStore store, int row) {
+    if (!cachedFlight(store.fid(row))) {
+      writeFlight(store.fid(row), store.day(row), store.carrierName(row),
+          Integer.toString(store.flightNum(row)), store.originName(row), store.destName(row),
+          store.time(row), store.capacity(row), store.price(row));
+    }
+    return this;
+  }
+
+  private void writeFlight(int fid, int day, String carrier, String flightNum, String origin,
+                           String dest, int time, int capacity, int price) {
+    if (FLIGHT_LINES.size() < maxCachedLines) {
+      StringBuilder line = new StringBuilder(128);
+      new ResponseWriter(line).writeFields(fid, day, carrier, flightNum, origin, dest, time,
+          capacity, price);
+      String rendered = line.toString();
+      FLIGHT_LINES.putIfAbsent(fid, rendered);
+      append(rendered);
+    } else {
+      writeFields(fid, day, carrier, flightNum, origin, dest, time, capacity, price);
+    }
+  }
+
+  private void writeFields(int fid, int day, String carrier, String flightNum, String origin,
+                           String dest, int time, int capacity, int price) {
+    append("ID: ").append(fid).append(" Day: ").append(day).append(" Carrier: ").append(carrier)
+        .append(" Number: ").append(flightNum).append(" Origin: ").append(origin)
+        .append(" Dest: ").append(dest).append(" Duration: ").append(time)
+        .append(" Capacity: ").append(capacity).append(" Price: ").append(price);
+  }
+
+  /**
+   * Sets how many flight lines may be cached; lines already cached are kept
+   */
+  static void setMaxCachedLines(int maxLines) {
+    maxCachedLines = Math.max(0, maxLines);
+  }
+
+  @Override
+  public String toString() {
+    return out.toString();
+  }
+}
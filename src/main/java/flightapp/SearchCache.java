@@ -0,0 +1,145 @@
+package flightapp;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of ranked search results shared by every session.
+ *
+ * Entries are keyed by (origin city, destination city, direct only, day of month, number of
+ * itineraries) and evicted least-recently-used once the cache is full, or once they are older
+ * than the configured time to live. Cached lists are immutable; sessions copy what they need
+ * out of them.
+ */
+public class SearchCache {
+  private static final String SIZE_PROPERTY = "flightapp.search_cache_size";
+  private static final String TTL_PROPERTY = "flightapp.search_cache_ttl_seconds";
+  private static final int DEFAULT_SIZE = 1024;
+  private static final int DEFAULT_TTL_SECONDS = 300;
+
+  private static volatile SearchCache instance;
+  private static volatile boolean disabled;
+
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final LinkedHashMap<Key, CachedResult> entries;
+
+  SearchCache(int maxEntries, long ttl, TimeUnit unit) {
+    this.maxEntries = maxEntries;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.entries = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+        return size() > SearchCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the process-wide cache, creating it on first use.
+   *
+   * @return null if the cache is disabled by setting flightapp.search_cache_size to 0
+   */
+  public static SearchCache getInstance() throws IOException {
+    SearchCache cache = instance;
+    if (cache == null && !disabled) {
+      synchronized (SearchCache.class) {
+        cache = instance;
+        if (cache == null && !disabled) {
+          int size = DBConnUtils.getIntProperty(SIZE_PROPERTY, DEFAULT_SIZE);
+          int ttl = DBConnUtils.getIntProperty(TTL_PROPERTY, DEFAULT_TTL_SECONDS);
+          if (size <= 0 || ttl <= 0) {
+            disabled = true;
+          } else {
+            cache = new SearchCache(size, ttl, TimeUnit.SECONDS);
+            instance = cache;
+          }
+        }
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the cached itineraries for the given search, or null if there is no live entry
+   */
+  public synchronized List<Query.Compact> get(String originCity, String destCity,
+                                              boolean directFlight, int dayOfMonth,
+                                              int numItineraries) {
+    Key key = new Key(originCity, destCity, directFlight, dayOfMonth, numItineraries);
+    CachedResult entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.nanoTime() - entry.createdAt > ttlNanos) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.itineraries;
+  }
+
+  /**
+   * Caches the ranked itineraries for the given search
+   */
+  public synchronized void put(String originCity, String destCity, boolean directFlight,
+                               int dayOfMonth, int numItineraries,
+                               List<Query.Compact> itineraries) {
+    entries.put(new Key(originCity, destCity, directFlight, dayOfMonth, numItineraries),
+            new CachedResult(Collections.unmodifiableList(new ArrayList<>(itineraries))));
+  }
+
+  /**
+   * Drops every cached search
+   */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private static class CachedResult {
+    final List<Query.Compact> itineraries;
+    final long createdAt;
+
+    CachedResult(List<Query.Compact> itineraries) {
+      this.itineraries = itineraries;
+      this.createdAt = System.nanoTime();
+    }
+  }
+
+  private static class Key {
+    final String originCity;
+    final String destCity;
+    final boolean directFlight;
+    final int dayOfMonth;
+    final int numItineraries;
+
+    Key(String originCity, String destCity, boolean directFlight, int dayOfMonth,
+        int numItineraries) {
+      this.originCity = FlightIndex.cityKey(originCity);
+      this.destCity = FlightIndex.cityKey(destCity);
+      this.directFlight = directFlight;
+      this.dayOfMonth = dayOfMonth;
+      this.numItineraries = numItineraries;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return originCity.equals(other.originCity) && destCity.equals(other.destCity)
+          && directFlight == other.directFlight && dayOfMonth == other.dayOfMonth
+          && numItineraries == other.numItineraries;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(originCity, destCity, directFlight, dayOfMonth, numItineraries);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and checks signed session tokens, so a returning session can log in again without
+ * the cost of verifying its password.
+ *
+ * A token carries the username, the user's token epoch and token salt, and an expiry time,
+ * signed with HMAC-SHA256 under flightapp.session_token_key (base64). Checking one takes a
+ * single HMAC and a constant-time comparison. The epoch is a counter kept with the user; bumping
+ * it revokes every token issued before. The salt is a random number the database picks when the
+ * user is created, so tokens of a deleted user do not work for a new user of the same name.
+ * Without a configured key, each process signs with a random key of its own, and tokens stop
+ * working when it exits.
+ */
+public class SessionTokens {
+  private static final String KEY_PROPERTY = "flightapp.session_token_key";
+  private static final String TTL_PROPERTY = "flightapp.session_token_ttl_seconds";
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+  private static volatile SessionTokens instance;
+
+  private final SecretKeySpec key;
+  private final long ttlSeconds;
+  // Mac objects are not thread-safe
+  private final ThreadLocal<Mac> macs;
+
+  SessionTokens(byte[] key, long ttlSeconds) {
+    this.key = new SecretKeySpec(key, ALGORITHM);
+    this.ttlSeconds = ttlSeconds;
+    this.macs = ThreadLocal.withInitial(() -> {
+      try {
+        Mac mac = Mac.getInstance(ALGORITHM);
+        mac.init(this.key);
+        return mac;
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+  }
+
+  /**
+   * Returns the process-wide token signer, creating it on first use
+   */
+  public static SessionTokens getInstance() throws IOException {
+    SessionTokens tokens = instance;
+    if (tokens == null) {
+      synchronized (SessionTokens.class) {
+        tokens = instance;
+        if (tokens == null) {
+          String configuredKey = DBConnUtils.getProperty(KEY_PROPERTY, null);
+          byte[] key;
+          if (configuredKey != null) {
+            key = Base64.getDecoder().decode(configuredKey);
+          } else {
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+          }
+          tokens = new SessionTokens(key, DBConnUtils.getIntProperty(TTL_PROPERTY, 3600));
+          instance = tokens;
+        }
+      }
+    }
+    return tokens;
+  }
+
+  /**
+   * Returns a token for the given user, token epoch and token salt that expires after
+   * flightapp.session_token_ttl_seconds
+   */
+  public String issue(String username, int epoch, long salt) {
+    long expiry = System.currentTimeMillis() / 1000 + ttlSeconds;
+    String payload = ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8))
+        + "." + epoch + "." + salt + "." + expiry;
+    return payload + "." + ENCODER.encodeToString(sign(payload));
+  }
+
+  /**
+   * Checks a token's signature and expiry
+   *
+   * @return the user, epoch and salt the token was issued for, or null if the token is malformed,
+   *         forged or expired
+   */
+  public Claims verify(String token) {
+    int signatureStart = token.lastIndexOf('.');
+    if (signatureStart < 0) {
+      return null;
+    }
+    String payload = token.substring(0, signatureStart);
+    byte[] signature;
+    try {
+      signature = DECODER.decode(token.substring(signatureStart + 1));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (!MessageDigest.isEqual(signature, sign(payload))) {
+      return null;
+    }
+
+    // The payload was made by issue, so it has all four fields
+    String[] fields = payload.split("\\.");
+    long expiry = Long.parseLong(fields[3]);
+    if (System.currentTimeMillis() / 1000 >= expiry) {
+      return null;
+    }
+    return new Claims(new String(DECODER.decode(fields[0]), StandardCharsets.UTF_8),
+        Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+  }
+
+  private byte[] sign(String payload) {
+    return macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * The user, token epoch and token salt a verified token was issued for
+   */
+  public static class Claims {
+    public final String username;
+    public final int epoch;
+    public final long salt;
+
+    Claims(String username, int epoch, long salt) {
+      this.username = username;
+      this.epoch = epoch;
+      this.salt = salt;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package flightapp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Wraps a {@link Connection} and follows its transactions on the client, so a dangling
+ * transaction can be detected without asking the server for @@TRANCOUNT.
+ *
+ * A transaction starts when auto-commit is turned off and ends with commit() or rollback().
+ * One that is still open when the operation finishes, or that was ended by turning auto-commit
+ * back on (which commits it implicitly), is reported as dangling. Transactions begun in SQL
+ * text, e.g. with BEGIN TRANSACTION, are not seen; the strict check in QueryAbstract asks the
+ * server as well to catch those.
+ */
+public class TransactionTracker implements InvocationHandler {
+  private final Connection target;
+  private final Connection proxy;
+
+  private boolean autoCommit;
+  private boolean open;
+  private boolean endedImplicitly;
+
+  public TransactionTracker(Connection target) throws SQLException {
+    this.target = target;
+    this.autoCommit = target.getAutoCommit();
+    this.open = !autoCommit;
+    this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+            new Class<?>[] {Connection.class}, this);
+  }
+
+  /**
+   * The tracked connection, to be used in place of the wrapped one
+   */
+  public Connection connection() {
+    return proxy;
+  }
+
+  /**
+   * Whether a transaction was left open, or was ended by turning auto-commit back on, since
+   * the last call to {@link #reset}
+   */
+  public boolean dangling() {
+    return open || endedImplicitly;
+  }
+
+  /**
+   * Ends any open transaction by turning auto-commit back on, and forgets what was seen
+   */
+  public void reset() throws SQLException {
+    if (!autoCommit) {
+      target.setAutoCommit(true);
+      autoCommit = true;
+    }
+    open = false;
+    endedImplicitly = false;
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    Object result;
+    try {
+      result = method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+    // Only record calls the connection accepted
+    switch (method.getName()) {
+      case "setAutoCommit":
+        boolean enable = (Boolean) args[0];
+        if (enable && open) {
+          endedImplicitly = true;
+        }
+        open = !enable;
+        autoCommit = enable;
+        break;
+      case "commit":
+        open = false;
+        break;
+      case "rollback":
+        // Rolling back to a savepoint leaves the transaction open
+        if (args == null) {
+          open = false;
+        }
+        break;
+      case "close":
+        open = false;
+        break;
+      default:
+        break;
+    }
+    return result;
+  }
+}
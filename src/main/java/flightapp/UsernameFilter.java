@@ -0,0 +1,136 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the usernames in Users_ckirby03, so creating a user with a new name can
+ * usually skip the query for an existing one.
+ *
+ * The filter is loaded from the table on first use and sized for flightapp.username_filter_size
+ * names at a 1% false positive rate; it keeps working past that size, with more false
+ * positives. It only answers "definitely not taken" for names no session in this process has
+ * seen, so users created by other processes afterwards are missed: callers must still rely on
+ * the unique username_lower column, and add a name here when inserting it fails.
+ */
+public class UsernameFilter {
+  private static final String SIZE_PROPERTY = "flightapp.username_filter_size";
+  private static final String LOAD_SQL = "SELECT username_lower FROM Users_ckirby03";
+
+  private static volatile UsernameFilter instance;
+
+  private final AtomicLongArray bits;
+  private final int numBits;
+  private final int numHashes;
+
+  UsernameFilter(int expectedNames) {
+    // Optimal for a 1% false positive rate: about 9.6 bits and 7 hashes per name
+    long wanted = Math.max(64, (long) Math.ceil(expectedNames * 9.6));
+    numBits = (int) Math.min(wanted, Integer.MAX_VALUE - 63);
+    numHashes = 7;
+    bits = new AtomicLongArray((numBits + 63) / 64);
+  }
+
+  /**
+   * Returns the process-wide filter, loading it from Users_ckirby03 on first use
+   *
+   * @return null if flightapp.username_filter_size is set to 0
+   */
+  public static UsernameFilter getInstance() throws SQLException, IOException {
+    UsernameFilter filter = instance;
+    if (filter == null) {
+      synchronized (UsernameFilter.class) {
+        filter = instance;
+        if (filter == null) {
+          int size = DBConnUtils.getIntProperty(SIZE_PROPERTY, 100000);
+          if (size <= 0) {
+            return null;
+          }
+          filter = new UsernameFilter(size);
+          Connection conn = DBConnUtils.openConnection();
+          try (Statement statement = conn.createStatement();
+               ResultSet results = statement.executeQuery(LOAD_SQL)) {
+            while (results.next()) {
+              filter.add(results.getString("username_lower"));
+            }
+          } finally {
+            conn.close();
+          }
+          instance = filter;
+        }
+      }
+    }
+    return filter;
+  }
+
+  /**
+   * Returns the form of a username stored in username_lower, which compares usernames
+   * case-insensitively
+   */
+  public static String normalize(String username) {
+    return username.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Records that a username is taken
+   */
+  public void add(String username) {
+    long hash = hash(normalize(username));
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      int bit = Math.floorMod(h1 + i * h2, numBits);
+      long mask = 1L << bit;
+      int word = bit >>> 6;
+      long current;
+      do {
+        current = bits.get(word);
+      } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+    }
+  }
+
+  /**
+   * Whether a username may be taken. False means no session of this process has seen it.
+   */
+  public boolean mightContain(String username) {
+    long hash = hash(normalize(username));
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      int bit = Math.floorMod(h1 + i * h2, numBits);
+      if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Forgets every username, e.g. after the users table is cleared
+   */
+  public void clear() {
+    for (int i = 0; i < bits.length(); i++) {
+      bits.set(i, 0);
+    }
+  }
+
+  // 64-bit FNV-1a over the chars of the name, split by add and mightContain into the two hashes
+  //    of double hashing
+  private static long hash(String name) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < name.length(); i++) {
+      hash ^= name.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    // Finalizer from MurmurHash3, so both halves depend on every char
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,148 @@
+package flightapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures booking throughput while other sessions keep searching and listing their
+ * reservations, first with those reads at serializable isolation and then at the given read
+ * isolation level (read_committed unless another is named).
+ *
+ * Uses the database in dbconn.properties and clears the application's tables, so it is not part
+ * of the test suite. Run it with
+ *
+ *   mvn test-compile exec:java -Dexec.mainClass=flightapp.BookingThroughputBenchmark \
+ *       -Dexec.classpathScope=test -Dexec.args="[read isolation] [bookers] [readers] [seconds]"
+ *
+ * Settings in dbconn.properties take precedence over the ones this sets, so leave the isolation
+ * settings out of it while benchmarking.
+ */
+public class BookingThroughputBenchmark {
+  private static final String[][] ROUTES = {
+      {"Seattle WA", "Boston MA"},
+      {"Chicago IL", "New York NY"},
+      {"Los Angeles CA", "San Francisco CA"},
+      {"Atlanta GA", "Dallas/Fort Worth TX"}};
+
+  private final int numBookers;
+  private final int numReaders;
+  private final int seconds;
+
+  private final AtomicBoolean stop = new AtomicBoolean();
+  private final AtomicLong bookings = new AtomicLong();
+  private final AtomicLong bookingAttempts = new AtomicLong();
+  private final AtomicLong reads = new AtomicLong();
+
+  private BookingThroughputBenchmark(int numBookers, int numReaders, int seconds) {
+    this.numBookers = numBookers;
+    this.numReaders = numReaders;
+    this.seconds = seconds;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String readIsolation = args.length > 0 ? args[0] : "read_committed";
+    int numBookers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int numReaders = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+    int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+
+    // Searches should reach the database every time
+    System.setProperty("flightapp.search_index", "false");
+    System.setProperty("flightapp.search_cache_size", "0");
+
+    for (String isolation : new String[] {"serializable", readIsolation}) {
+      System.setProperty("flightapp.search_isolation", isolation);
+      System.setProperty("flightapp.reservations_isolation", isolation);
+      new BookingThroughputBenchmark(numBookers, numReaders, seconds).run(isolation);
+    }
+    System.out.println("Transactions: " + QueryAbstract.transactionMetrics());
+  }
+
+  private void run(String isolation) throws Exception {
+    Query setup = new Query();
+    setup.clearTables();
+    setup.closeConnection();
+
+    ExecutorService pool = Executors.newFixedThreadPool(numBookers + numReaders);
+    List<Future<?>> sessions = new ArrayList<>();
+    for (int i = 0; i < numBookers; i++) {
+      int booker = i;
+      sessions.add(pool.submit(() -> {
+        book(booker);
+        return null;
+      }));
+    }
+    for (int i = 0; i < numReaders; i++) {
+      int reader = i;
+      sessions.add(pool.submit(() -> {
+        read(reader);
+        return null;
+      }));
+    }
+
+    long start = System.nanoTime();
+    TimeUnit.SECONDS.sleep(seconds);
+    stop.set(true);
+    for (Future<?> session : sessions) {
+      session.get();
+    }
+    pool.shutdown();
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    System.out.printf("Reads at %s: %.1f bookings/s (%d of %d attempts booked), %.1f reads/s%n",
+        isolation, bookings.get() / elapsed, bookings.get(), bookingAttempts.get(),
+        reads.get() / elapsed);
+  }
+
+  // Books one flight a day on a random route, starting over as a new user once every day of the
+  //    month is taken
+  private void book(int booker) throws Exception {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int round = 0; !stop.get(); round++) {
+      Query q = new Query();
+      try {
+        String username = "booker" + booker + "x" + round;
+        q.createCustomer(username, "password", 1000000);
+        q.login(username, "password");
+        for (int day = 1; day <= 31 && !stop.get(); day++) {
+          String[] route = ROUTES[random.nextInt(ROUTES.length)];
+          if (q.search(route[0], route[1], true, day, 1).startsWith("Itinerary")) {
+            bookingAttempts.incrementAndGet();
+            if (q.book(0).startsWith("Booked")) {
+              bookings.incrementAndGet();
+            }
+          }
+        }
+      } finally {
+        q.closeConnection();
+      }
+    }
+  }
+
+  // Alternates searches with listing the reservations of a user that has one
+  private void read(int reader) throws Exception {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    Query q = new Query();
+    try {
+      String username = "reader" + reader;
+      q.createCustomer(username, "password", 1000000);
+      q.login(username, "password");
+      q.search(ROUTES[0][0], ROUTES[0][1], true, 1 + reader % 28, 1);
+      q.book(0);
+      while (!stop.get()) {
+        String[] route = ROUTES[random.nextInt(ROUTES.length)];
+        q.search(route[0], route[1], false, 1 + random.nextInt(28), 10);
+        q.reservations();
+        reads.addAndGet(2);
+      }
+    } finally {
+      q.closeConnection();
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package flightapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares splitting commands and finding their handler with the hand-written CommandParser
+ * against the regular expression and chain of equals checks it replaced.
+ *
+ * Needs no database. Run it with
+ *
+ *   mvn test-compile exec:java -Dexec.mainClass=flightapp.CommandParserBenchmark \
+ *       -Dexec.classpathScope=test -Dexec.args="[seconds per measurement]"
+ */
+public class CommandParserBenchmark {
+  private static final String[] COMMANDS = {
+      "login user1 password1",
+      "search \"Seattle WA\" \"Boston MA\" 0 14 10",
+      "book 3",
+      "pay 12",
+      "reservations",
+      "create \"new user\" secret 1000",
+      "searchbatch \"Seattle WA\" \"Boston MA\" 1 1 5 \"Chicago IL\" \"New York NY\" 0 2 5"};
+  private static final String[] NAMES = {"login", "token", "login-token", "revoke-tokens",
+      "create", "search", "searchbatch", "book", "reservations", "pay", "quit"};
+
+  // Keeps results alive so the work cannot be optimized away
+  private static long sink;
+
+  public static void main(String[] args) {
+    double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 5;
+
+    CommandParser.Table<Integer> table = new CommandParser.Table<>(NAMES.length);
+    for (int i = 0; i < NAMES.length; i++) {
+      table.put(NAMES[i], i);
+    }
+    CommandParser parser = new CommandParser();
+
+    double regexNanos = measure("regex and equals chain", seconds, command -> {
+      String[] tokens = regexTokenize(command.trim());
+      int handler = -1;
+      for (int i = 0; i < NAMES.length; i++) {
+        if (tokens[0].equals(NAMES[i])) {
+          handler = i;
+          break;
+        }
+      }
+      return handler + tokens.length;
+    });
+    double parserNanos = measure("parser and table", seconds, command -> {
+      CommandParser tokens = parser.parse(command.trim());
+      Integer handler = table.get(tokens, 0);
+      return (handler == null ? -1 : handler) + tokens.size();
+    });
+
+    System.out.printf("The parser is %.1fx faster%n", regexNanos / parserNanos);
+  }
+
+  // The tokenizer FlightService used before CommandParser
+  private static String[] regexTokenize(String command) {
+    String regex = "\"([^\"]*)\"|(\\S+)";
+    Matcher m = Pattern.compile(regex).matcher(command);
+    List<String> tokens = new ArrayList<>();
+    while (m.find()) {
+      if (m.group(1) != null)
+        tokens.add(m.group(1));
+      else
+        tokens.add(m.group(2));
+    }
+    return tokens.toArray(new String[0]);
+  }
+
+  private interface Dispatch {
+    int run(String command);
+  }
+
+  // Runs the dispatch over every command for a warm-up period and then for the given time, and
+  //    prints and returns the mean nanoseconds per command
+  private static double measure(String name, double seconds, Dispatch dispatch) {
+    long warmUpEnd = System.nanoTime() + (long) (seconds * 1e9 / 2);
+    while (System.nanoTime() < warmUpEnd) {
+      for (String command : COMMANDS) {
+        sink += dispatch.run(command);
+      }
+    }
+    long count = 0;
+    long start = System.nanoTime();
+    long end = start + (long) (seconds * 1e9);
+    long now;
+    do {
+      for (String command : COMMANDS) {
+        sink += dispatch.run(command);
+      }
+      count += COMMANDS.length;
+      now = System.nanoTime();
+    } while (now < end);
+    double nanos = (double) (now - start) / count;
+    System.out.printf("%-24s %8.1f ns/command (%d commands)%n", name, nanos, count);
+    return nanos;
+  }
+}
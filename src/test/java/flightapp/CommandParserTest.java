@@ -0,0 +1,113 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+public class CommandParserTest {
+  // How commands used to be split
+  static List<String> regexTokens(String command) {
+    Matcher m = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(command);
+    List<String> tokens = new ArrayList<>();
+    while (m.find()) {
+      tokens.add(m.group(1) != null ? m.group(1) : m.group(2));
+    }
+    return tokens;
+  }
+
+  private static List<String> tokens(CommandParser parser) {
+    List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < parser.size(); i++) {
+      tokens.add(parser.token(i));
+    }
+    return tokens;
+  }
+
+  @Test
+  public void testSplitsLikeTheRegex() {
+    CommandParser parser = new CommandParser();
+    String[] commands = {
+        "",
+        "   ",
+        "reservations",
+        "search \"Seattle WA\" \"Boston MA\" 1 1 1",
+        "  login\tuser1 \"pass word\"  ",
+        "create \"\" pw 100",
+        "a\"b c\"d",
+        "\"unclosed quote here",
+        "\"a b\"\"c d\" e",
+        "x\u000By\fz\r\nw",
+        "search \"New York NY\"x 0 3 10"};
+    for (String command : commands) {
+      assertEquals(command, regexTokens(command), tokens(parser.parse(command)));
+    }
+  }
+
+  @Test
+  public void testReusesArraysForLongLines() {
+    CommandParser parser = new CommandParser();
+    StringBuilder command = new StringBuilder("searchbatch");
+    for (int i = 0; i < 40; i++) {
+      command.append(" \"Seattle WA\" \"Boston MA\" 0 ").append(i % 28 + 1).append(" 5");
+    }
+    assertEquals(regexTokens(command.toString()), tokens(parser.parse(command)));
+    assertEquals(Arrays.asList("quit"), tokens(parser.parse("quit")));
+  }
+
+  @Test
+  public void testParsesIntsLikeIntegerParseInt() {
+    CommandParser parser = new CommandParser();
+    String[] values = {"0", "42", "-7", "+7", "007", "2147483647", "-2147483648", "2147483648",
+        "-2147483649", "99999999999", "-", "+", "1x", "x", "1.5", "٣٤", "--1"};
+    for (String value : values) {
+      parser.parse("book " + value);
+      Integer expected;
+      try {
+        expected = Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        expected = null;
+      }
+      try {
+        int parsed = parser.intToken(1);
+        assertEquals(value, expected, Integer.valueOf(parsed));
+      } catch (NumberFormatException e) {
+        assertNull(value, expected);
+      }
+    }
+  }
+
+  @Test
+  public void testTableFindsNamesByToken() {
+    CommandParser.Table<Integer> table = new CommandParser.Table<>(4);
+    table.put("book", 1);
+    table.put("pay", 2);
+    table.put("search", 3);
+    CommandParser parser = new CommandParser().parse("pay book searchbatch Pay");
+
+    assertEquals(Integer.valueOf(2), table.get(parser, 0));
+    assertEquals(Integer.valueOf(1), table.get(parser, 1));
+    assertNull(table.get(parser, 2));
+    assertNull(table.get(parser, 3));
+    assertTrue(parser.tokenEquals(0, "pay"));
+    assertFalse(parser.tokenEquals(3, "pay"));
+  }
+
+  @Test
+  public void testRejectsMissingTokens() {
+    try {
+      new CommandParser().parse("book").token(1);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+  }
+}
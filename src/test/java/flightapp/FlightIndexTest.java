@@ -0,0 +1,96 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+public class FlightIndexTest {
+  // A hub-heavy network where most city pairs have dozens of connecting cities
+  private static List<Query.Flight> hubFlights(long seed) {
+    Random random = new Random(seed);
+    List<Query.Flight> flights = new ArrayList<>();
+    for (int fid = 1; fid <= 4000; fid++) {
+      int origin = random.nextInt(3) == 0 ? 0 : random.nextInt(60);
+      int dest = random.nextInt(3) == 0 ? 1 : random.nextInt(60);
+      if (origin == dest) {
+        continue;
+      }
+      flights.add(new Query.Flight(fid, 1, "AA", "" + fid, "City " + origin, "City " + dest,
+                                   60 + 15 * random.nextInt(10), 10, 100));
+    }
+    return flights;
+  }
+
+  private static List<String> describe(List<Query.Compact> itineraries) {
+    List<String> described = new ArrayList<>();
+    for (Query.Compact itinerary : itineraries) {
+      described.add(itinerary.duration + ": " + itinerary.fid(0) + " " + itinerary.fid(1));
+    }
+    return described;
+  }
+
+  @Test
+  public void testBatchOneStopMatchesSingleSearches() {
+    FlightIndex index = FlightIndex.of(hubFlights(7));
+    List<String> dests = new ArrayList<>();
+    int[] limits = new int[12];
+    for (int i = 0; i < limits.length; i++) {
+      dests.add(i == 11 ? "Nowhere" : "City " + (i * 5 + 1));
+      limits[i] = i % 4 == 3 ? 0 : 1 + i * 3;
+    }
+    List<List<Query.Compact>> batch = index.oneStopItineraries("city 0 ", dests, 1, limits);
+    assertEquals(dests.size(), batch.size());
+    for (int i = 0; i < dests.size(); i++) {
+      assertEquals(dests.get(i),
+          describe(index.oneStopItineraries("City 0", dests.get(i), 1, limits[i])),
+          describe(batch.get(i)));
+    }
+  }
+
+  @Test
+  public void testHugeLimitReturnsEveryOneStop() {
+    FlightIndex index = FlightIndex.of(hubFlights(3));
+    List<String> all = describe(index.oneStopItineraries("City 0", "City 1", 1, 1000000));
+
+    assertEquals(all, describe(index.oneStopItineraries("City 0", "City 1", 1,
+        Integer.MAX_VALUE)));
+    assertEquals(all, describe(index.oneStopItineraries("City 0", "City 1", 1, 50000000)));
+
+  }
+
+  @Test
+  public void testHugeLimitReturnsEveryDirectFlight() {
+    FlightIndex index = FlightIndex.of(hubFlights(3));
+    List<Query.Compact> all = index.directItineraries("City 0", "City 1", 1, 1000000);
+    List<Query.Compact> huge = index.directItineraries("City 0", "City 1", 1, Integer.MAX_VALUE);
+
+    assertEquals(all.size(), huge.size());
+    for (int i = 0; i < all.size(); i++) {
+      assertEquals(all.get(i).fid(0), huge.get(i).fid(0));
+    }
+  }
+
+  @Test
+  public void testParallelOneStopMatchesSequential() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (long seed = 0; seed < 5; seed++) {
+        FlightIndex index = FlightIndex.of(hubFlights(seed));
+        for (int limit : new int[] {1, 7, 50, 500}) {
+          index.setSearchPool(null, 0);
+          List<String> sequential =
+              describe(index.oneStopItineraries("City 0", "City 1", 1, limit));
+          index.setSearchPool(pool, 2);
+          List<String> parallel = describe(index.oneStopItineraries("City 0", "City 1", 1, limit));
+          assertEquals("seed " + seed + ", limit " + limit, sequential, parallel);
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
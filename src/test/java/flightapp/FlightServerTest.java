@@ -0,0 +1,104 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FlightServerTest {
+  private FlightServer server;
+  private Thread serverThread;
+
+  @Before
+  public void startServer() throws IOException {
+    // The commands used here never reach the query object
+    server = new FlightServer(new InetSocketAddress("localhost", 0), 2, 1024, 4, () -> null);
+    serverThread = new Thread(() -> {
+      try {
+        server.run();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    serverThread.start();
+  }
+
+  @After
+  public void stopServer() throws InterruptedException {
+    server.shutdown(5, TimeUnit.SECONDS);
+    serverThread.join();
+  }
+
+  @Test
+  public void testAnswersEachCommandAndClosesAfterQuit() throws IOException {
+    try (Socket socket = new Socket("localhost", server.port())) {
+      OutputStream out = socket.getOutputStream();
+      InputStream in = socket.getInputStream();
+
+      out.write("fly away\r\n".getBytes(StandardCharsets.UTF_8));
+      assertEquals("Error: unrecognized command 'fly'", FlightClient.readResponse(in));
+      out.write("\n".getBytes(StandardCharsets.UTF_8));
+      assertEquals("Please enter a command", FlightClient.readResponse(in));
+      out.write("quit\n".getBytes(StandardCharsets.UTF_8));
+      assertEquals("Goodbye\n", FlightClient.readResponse(in));
+      assertEquals(null, FlightClient.readResponse(in));
+    }
+  }
+
+  @Test
+  public void testRejectsOverlongCommands() throws IOException {
+    try (Socket socket = new Socket("localhost", server.port())) {
+      byte[] command = new byte[2048];
+      Arrays.fill(command, (byte) 'x');
+      socket.getOutputStream().write(command);
+
+      assertEquals("Error: command longer than 1024 bytes\n", FlightClient.readResponse(socket.getInputStream()));
+      assertEquals(null, FlightClient.readResponse(socket.getInputStream()));
+    }
+  }
+
+  @Test
+  public void testShutdownClosesIdleConnections() throws Exception {
+    try (Socket socket = new Socket("localhost", server.port())) {
+      socket.getOutputStream().write("fly\n".getBytes(StandardCharsets.UTF_8));
+      assertEquals("Error: unrecognized command 'fly'", FlightClient.readResponse(socket.getInputStream()));
+
+      server.shutdown(5, TimeUnit.SECONDS);
+      assertEquals(null, FlightClient.readResponse(socket.getInputStream()));
+    }
+  }
+
+  @Test
+  public void testPipelinedCommandsAnswerInOrder() throws IOException {
+    try (FlightClient client = new FlightClient("localhost", server.port())) {
+      List<String> commands = new ArrayList<>();
+      List<String> expected = new ArrayList<>();
+      // More than may wait at once, so reading has to pause and resume
+      for (int i = 0; i < 50; i++) {
+        commands.add("fly" + i);
+        expected.add("Error: unrecognized command 'fly" + i + "'");
+      }
+      assertEquals(expected, client.call(commands));
+      assertEquals("Please enter a command", client.call(""));
+    }
+  }
+
+  @Test
+  public void testPipelinedCommandsAfterQuitAreDropped() throws IOException {
+    try (FlightClient client = new FlightClient("localhost", server.port())) {
+      assertEquals(Arrays.asList("Error: unrecognized command 'fly'", "Goodbye\n"),
+          client.call(Arrays.asList("fly", "quit", "fly")));
+    }
+  }
+}
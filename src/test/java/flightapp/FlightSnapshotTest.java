@@ -0,0 +1,87 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FlightSnapshotTest {
+  private static final List<Query.Flight> FLIGHTS = Arrays.asList(
+      new Query.Flight(721199, 5, "B6", "1698", "Seattle WA", "Boston MA", 304, 12, 129),
+      new Query.Flight(722276, 5, "B6", "598", "Seattle WA", "Boston MA", 302, 1, 154),
+      new Query.Flight(60100, 5, "AS", "12", "Seattle WA", "Chicago IL", 240, 3, 300),
+      new Query.Flight(60200, 5, "UA", "77", "Chicago IL", "Boston MA", 120, 5, 200),
+      new Query.Flight(1034749, 6, "AS", "25", "São Paulo", "Seattle WA", 355, 8, 604));
+
+  private Path dir;
+  private Path file;
+
+  @Before
+  public void createDir() throws IOException {
+    dir = Files.createTempDirectory("snapshot");
+    file = dir.resolve("flights.snapshot");
+  }
+
+  @After
+  public void deleteDir() throws IOException {
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(dir);
+  }
+
+  @Test
+  public void testRoundTripsStore() throws IOException {
+    FlightStore store = FlightIndex.of(FLIGHTS).store();
+    FlightSnapshot.write(store, 42L, file);
+
+    FlightSnapshot snapshot = FlightSnapshot.read(file);
+    assertEquals(42L, snapshot.fingerprint());
+    FlightStore copy = snapshot.store();
+    assertEquals(store.size(), copy.size());
+    for (Query.Flight flight : FLIGHTS) {
+      assertEquals(flight.toString(), copy.flight(copy.rowOf(flight.fid)).toString());
+    }
+
+    // Routes keep their order, so an index over the copy answers the same way
+    FlightIndex index = new FlightIndex(copy);
+    List<Query.Compact> oneStop = index.oneStopItineraries("Seattle WA", "Boston MA", 5, 5);
+    assertEquals(1, oneStop.size());
+    assertEquals(360, oneStop.get(0).duration);
+  }
+
+  @Test
+  public void testRejectsCorruptSnapshot() throws IOException {
+    FlightSnapshot.write(FlightIndex.of(FLIGHTS).store(), 42L, file);
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.seek(raf.length() / 2);
+      int b = raf.read();
+      raf.seek(raf.length() / 2);
+      raf.write(b ^ 0xFF);
+    }
+
+    try {
+      FlightSnapshot.read(file);
+      fail("Corrupt snapshot was accepted");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testRejectsOtherFiles() throws IOException {
+    Files.write(file, new byte[64]);
+    try {
+      FlightSnapshot.read(file);
+      fail("Arbitrary file was accepted");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class FlightStoreTest {
+  private static final List<Query.Flight> FLIGHTS = Arrays.asList(
+      new Query.Flight(721199, 5, "B6", "1698", "Seattle WA", "Boston MA", 304, 12, 129),
+      new Query.Flight(722276, 5, "B6", "598", "Seattle WA", "Boston MA", 302, 1, 154),
+      new Query.Flight(722227, 5, "B6", "498", "Seattle WA", "Boston MA", 297, 10, 747),
+      new Query.Flight(1034748, 1, "AS", "24", "Seattle WA", "Boston MA", 297, 14, 890),
+      new Query.Flight(1034749, 5, "AS", "25", "Boston MA", "Seattle WA", 355, 8, 604));
+
+  @Test
+  public void testMaterializedFlightsPrintLikeTheOriginals() {
+    FlightStore store = FlightIndex.of(FLIGHTS).store();
+    for (Query.Flight flight : FLIGHTS) {
+      assertEquals(flight.toString(), store.flight(store.rowOf(flight.fid)).toString());
+    }
+  }
+
+  @Test
+  public void testLooksUpRowsByFid() {
+    FlightStore store = FlightIndex.of(FLIGHTS).store();
+    assertEquals(154, store.price(store.rowOf(722276)));
+    assertEquals(-1, store.rowOf(1));
+  }
+
+  @Test
+  public void testDictionaryEncodesCities() {
+    FlightStore store = FlightIndex.of(FLIGHTS).store();
+    assertEquals(2, store.numCities());
+    assertEquals(store.cityCode("Seattle WA"), store.cityCode("seattle wa "));
+    assertEquals(-1, store.cityCode("Austin TX"));
+  }
+
+  @Test
+  public void testDirectItinerariesAreOrderedByTimeThenFid() {
+    FlightIndex index = FlightIndex.of(FLIGHTS);
+    List<Query.Compact> itineraries = index.directItineraries("Seattle WA", "Boston MA", 5, 2);
+    assertEquals(2, itineraries.size());
+    assertEquals(722227, itineraries.get(0).fid(0));
+    assertEquals(722276, itineraries.get(1).fid(0));
+  }
+}
@@ -0,0 +1,25 @@
+package flightapp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeoutException;
+import org.junit.Test;
+
+public class HashingServiceTest {
+  @Test
+  public void testHashesMatchOnlyTheirPassword() throws Exception {
+    HashingService service = new HashingService(2, 4, 60000);
+    byte[] hash = service.hash("password");
+
+    assertTrue(service.matches("password", hash));
+    assertFalse(service.matches("Password", hash));
+  }
+
+  @Test(expected = TimeoutException.class)
+  public void testGivesUpAfterTimeout() throws Exception {
+    // No hash finishes within a millisecond
+    HashingService service = new HashingService(1, 1, 1);
+    service.hash("password");
+  }
+}
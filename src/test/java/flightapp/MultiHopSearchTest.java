@@ -0,0 +1,155 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+import org.junit.Test;
+
+public class MultiHopSearchTest {
+  private static final String[] CITIES = {"Seattle WA", "Boston MA", "Chicago IL", "Denver CO",
+                                          "Austin TX", "Miami FL"};
+
+  // A small random network where plenty of itineraries tie on total time
+  private static List<Query.Flight> randomFlights(long seed, int count) {
+    Random random = new Random(seed);
+    List<Query.Flight> flights = new ArrayList<>();
+    for (int fid = 1; fid <= count; fid++) {
+      String origin = CITIES[random.nextInt(CITIES.length)];
+      String dest = CITIES[random.nextInt(CITIES.length)];
+      if (origin.equals(dest)) {
+        continue;
+      }
+      flights.add(new Query.Flight(fid, 1 + random.nextInt(2), "AS", "" + fid, origin, dest,
+                                   10 * (1 + random.nextInt(6)), 10, 100));
+    }
+    return flights;
+  }
+
+  // Every itinerary of 2..maxLegs legs whose stops never revisit a city, in the expected order.
+  //    Only the last leg may arrive at the destination, which may be the origin.
+  private static List<String> bruteForce(List<Query.Flight> flights, String origin, String dest,
+                                         int day, int maxLegs, int limit) {
+    List<List<Query.Flight>> found = new ArrayList<>();
+    extend(flights, new ArrayList<>(), new HashSet<>(Collections.singleton(origin)), origin,
+           dest, day, maxLegs, found);
+    found.sort((a, b) -> {
+      int cmp = Integer.compare(minutes(a), minutes(b));
+      for (int i = 0; cmp == 0 && i < Math.min(a.size(), b.size()); i++) {
+        cmp = Integer.compare(a.get(i).fid, b.get(i).fid);
+      }
+      return cmp != 0 ? cmp : Integer.compare(a.size(), b.size());
+    });
+    List<String> expected = new ArrayList<>();
+    for (List<Query.Flight> itinerary : found.subList(0, Math.min(limit, found.size()))) {
+      expected.add(describe(itinerary, minutes(itinerary)));
+    }
+    return expected;
+  }
+
+  private static void extend(List<Query.Flight> flights, List<Query.Flight> path,
+                             Set<String> visited, String city, String dest, int day, int maxLegs,
+                             List<List<Query.Flight>> found) {
+    if (path.size() == maxLegs) {
+      return;
+    }
+    for (Query.Flight flight : flights) {
+      if (flight.dayOfMonth != day || !flight.originCity.equals(city)) {
+        continue;
+      }
+      if (flight.destCity.equals(dest)) {
+        if (path.size() >= 1) {
+          path.add(flight);
+          found.add(new ArrayList<>(path));
+          path.remove(path.size() - 1);
+        }
+      } else if (!visited.contains(flight.destCity)) {
+        path.add(flight);
+        visited.add(flight.destCity);
+        extend(flights, path, visited, flight.destCity, dest, day, maxLegs, found);
+        visited.remove(flight.destCity);
+        path.remove(path.size() - 1);
+      }
+    }
+  }
+
+  private static int minutes(List<Query.Flight> itinerary) {
+    int total = 0;
+    for (Query.Flight flight : itinerary) {
+      total += flight.time;
+    }
+    return total;
+  }
+
+  private static String describe(List<Query.Flight> flights, int duration) {
+    StringBuilder sb = new StringBuilder(duration + ":");
+    for (Query.Flight flight : flights) {
+      sb.append(' ').append(flight.fid);
+    }
+    return sb.toString();
+  }
+
+  private static List<String> describe(List<Query.Compact> itineraries) {
+    List<String> described = new ArrayList<>();
+    for (Query.Compact itinerary : itineraries) {
+      List<Query.Flight> flights = new ArrayList<>();
+      for (int leg = 0; leg < itinerary.numFlights(); leg++) {
+        flights.add(itinerary.flight(leg));
+      }
+      described.add(describe(flights, itinerary.duration));
+    }
+    return described;
+  }
+
+  @Test
+  public void testMatchesExhaustiveSearch() {
+    for (long seed = 0; seed < 20; seed++) {
+      List<Query.Flight> flights = randomFlights(seed, 60);
+      FlightIndex index = FlightIndex.of(flights);
+      for (int maxLegs = 2; maxLegs <= 4; maxLegs++) {
+        MultiHopSearch search = new MultiHopSearch(index, maxLegs, 0);
+        List<String> expected = bruteForce(flights, "Seattle WA", "Boston MA", 1, maxLegs, 25);
+        assertEquals("seed " + seed + ", " + maxLegs + " legs", expected,
+                     describe(search.connectingItineraries("Seattle WA", "Boston MA", 1, 25)));
+      }
+    }
+  }
+
+  @Test
+  public void testTwoLegsMatchesOneStopIndex() {
+    for (long seed = 0; seed < 20; seed++) {
+      FlightIndex index = FlightIndex.of(randomFlights(seed, 80));
+      MultiHopSearch search = new MultiHopSearch(index, 2, 0);
+      assertEquals(describe(index.oneStopItineraries("Seattle WA", "Boston MA", 2, 10)),
+                   describe(search.connectingItineraries("Seattle WA", "Boston MA", 2, 10)));
+    }
+  }
+
+  @Test
+  public void testRoundTrips() {
+    for (long seed = 0; seed < 20; seed++) {
+      List<Query.Flight> flights = randomFlights(seed, 60);
+      FlightIndex index = FlightIndex.of(flights);
+      assertEquals("seed " + seed,
+                   describe(index.oneStopItineraries("Seattle WA", "Seattle WA", 1, 10)),
+                   describe(new MultiHopSearch(index, 2, 0)
+                       .connectingItineraries("Seattle WA", "Seattle WA", 1, 10)));
+      for (int maxLegs = 2; maxLegs <= 4; maxLegs++) {
+        MultiHopSearch search = new MultiHopSearch(index, maxLegs, 0);
+        List<String> expected = bruteForce(flights, "Seattle WA", "Seattle WA", 1, maxLegs, 25);
+        assertEquals("seed " + seed + ", " + maxLegs + " legs", expected,
+                     describe(search.connectingItineraries("Seattle WA", "Seattle WA", 1, 25)));
+      }
+    }
+  }
+
+  @Test
+  public void testPrunesByTotalDuration() {
+    FlightIndex index = FlightIndex.of(randomFlights(7, 120));
+    MultiHopSearch search = new MultiHopSearch(index, 4, 90);
+    for (Query.Compact itinerary : search.connectingItineraries("Seattle WA", "Boston MA", 1, 50)) {
+      assertTrue(itinerary.duration <= 90);
+      assertTrue(itinerary.numFlights() >= 2 && itinerary.numFlights() <= 4);
+    }
+  }
+}
@@ -101,4 +101,37 @@ public class PasswordUtilsTest extends TestCase {
     hash2 = PasswordUtils.hashWithSalt(arHello, salt1);
     assertFalse(Arrays.equals(hash1, hash2));
   }
+
+  @Test
+  public void testNewHashesAreCurrent() {
+    byte[] hash = PasswordUtils.saltAndHashPassword("hola");
+
+    // 9-byte header, 16-byte salt and 32-byte key
+    assertEquals(57, hash.length);
+    assertFalse(PasswordUtils.needsRehash(hash));
+  }
+
+  @Test
+  public void testLegacyHashesStillMatch() {
+    byte[] salt = PasswordUtils.generateSalt();
+    byte[] key = PasswordUtils.hashWithSalt("bonjour", salt);
+    byte[] legacyHash = new byte[salt.length + key.length];
+    System.arraycopy(salt, 0, legacyHash, 0, salt.length);
+    System.arraycopy(key, 0, legacyHash, salt.length, key.length);
+
+    assertTrue(PasswordUtils.plaintextMatchesSaltedHash("bonjour", legacyHash));
+    assertFalse(PasswordUtils.plaintextMatchesSaltedHash("bonsoir", legacyHash));
+    assertTrue(PasswordUtils.needsRehash(legacyHash));
+  }
+
+  @Test
+  public void testLegacySaltThatLooksLikeAHeaderIsStillLegacy() {
+    byte[] salt = {'$', 1, 1, 0, 1, 0, 0, 16, 32, 10, 11, 12, 13, 14, 15, 16};
+    byte[] key = PasswordUtils.hashWithSalt("ciao", salt);
+    byte[] legacyHash = new byte[salt.length + key.length];
+    System.arraycopy(salt, 0, legacyHash, 0, salt.length);
+    System.arraycopy(key, 0, legacyHash, salt.length, key.length);
+
+    assertTrue(PasswordUtils.plaintextMatchesSaltedHash("ciao", legacyHash));
+  }
 }
@@ -0,0 +1,54 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class ResponseWriterTest {
+  private static final List<Query.Flight> FLIGHTS = Arrays.asList(
+      new Query.Flight(60100, 5, "AS", "12", "Seattle WA", "Chicago IL", 240, 3, 300),
+      new Query.Flight(60200, 5, "UA", "77", "Chicago IL", "Boston MA", 120, 5, 200),
+      new Query.Flight(721199, 5, "B6", "1698", "Seattle WA", "Boston MA", 304, 12, 129));
+
+  // The format search used before responses were streamed
+  private static String concatenated(List<Query.Compact> itineraries) {
+    String expected = "";
+    for (int i = 0; i < itineraries.size(); i++) {
+      Query.Compact itinerary = itineraries.get(i);
+      expected += "Itinerary " + i + ": " + itinerary.numFlights() + " flight(s), "
+          + itinerary.duration + " minutes\n";
+      for (int leg = 0; leg < itinerary.numFlights(); leg++) {
+        expected += itinerary.flight(leg) + "\n";
+      }
+    }
+    return expected;
+  }
+
+  @Test
+  public void testItinerariesMatchFlightToString() {
+    FlightIndex index = FlightIndex.of(FLIGHTS);
+    List<Query.Compact> itineraries = Arrays.asList(
+        index.directItineraries("Seattle WA", "Boston MA", 5, 1).get(0),
+        index.oneStopItineraries("Seattle WA", "Boston MA", 5, 1).get(0),
+        new Query.Compact(new Query.Flight[] {FLIGHTS.get(1)}, 120));
+    String expected = concatenated(itineraries);
+
+    // Once uncached, then from the line cache
+    for (int i = 0; i < 2; i++) {
+      assertEquals(expected, ResponseWriter.reusable().itineraries(itineraries).toString());
+    }
+    StringWriter out = new StringWriter();
+    new ResponseWriter(out).itineraries(itineraries);
+    assertEquals(expected, out.toString());
+  }
+
+  @Test
+  public void testReusableBufferStartsEmpty() {
+    ResponseWriter.reusable().append("leftover");
+    assertEquals("Reservation 3 paid: false:\n",
+        ResponseWriter.reusable().reservation(3, false).toString());
+  }
+}
@@ -0,0 +1,72 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class SearchCacheTest {
+  private static List<Query.Compact> itineraries(int fid) {
+    Query.Flight flight = new Query.Flight(fid, 1, "AS", "1", "Seattle WA", "Boston MA", 300,
+                                           10, 100);
+    return Arrays.asList(new Query.Compact(new Query.Flight[] {flight}, flight.time));
+  }
+
+  @Test
+  public void testHitsIgnoreCityCase() {
+    SearchCache cache = new SearchCache(4, 1, TimeUnit.HOURS);
+    cache.put("Seattle WA", "Boston MA", true, 1, 1, itineraries(1));
+
+    // City names compare like the database collation does
+    assertEquals(1, cache.get("seattle wa", "BOSTON MA ", true, 1, 1).get(0).fid(0));
+  }
+
+  @Test
+  public void testKeyIncludesEverySearchParameter() {
+    SearchCache cache = new SearchCache(4, 1, TimeUnit.HOURS);
+    cache.put("Seattle WA", "Boston MA", true, 1, 1, itineraries(1));
+
+    assertNull(cache.get("Boston MA", "Seattle WA", true, 1, 1));
+    assertNull(cache.get("Seattle WA", "Boston MA", false, 1, 1));
+    assertNull(cache.get("Seattle WA", "Boston MA", true, 2, 1));
+    assertNull(cache.get("Seattle WA", "Boston MA", true, 1, 2));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    SearchCache cache = new SearchCache(2, 1, TimeUnit.HOURS);
+    cache.put("Seattle WA", "Boston MA", true, 1, 1, itineraries(1));
+    cache.put("Seattle WA", "Boston MA", true, 2, 1, itineraries(2));
+
+    // Touch day 1 so that day 2 becomes the eldest entry
+    cache.get("Seattle WA", "Boston MA", true, 1, 1);
+    cache.put("Seattle WA", "Boston MA", true, 3, 1, itineraries(3));
+
+    assertEquals(2, cache.size());
+    assertNull(cache.get("Seattle WA", "Boston MA", true, 2, 1));
+    assertEquals(1, cache.get("Seattle WA", "Boston MA", true, 1, 1).get(0).fid(0));
+  }
+
+  @Test
+  public void testExpiresEntries() throws InterruptedException {
+    SearchCache cache = new SearchCache(4, 1, TimeUnit.MILLISECONDS);
+    cache.put("Seattle WA", "Boston MA", true, 1, 1, itineraries(1));
+    Thread.sleep(5);
+
+    assertNull(cache.get("Seattle WA", "Boston MA", true, 1, 1));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testSharesOneListAcrossSessions() {
+    SearchCache cache = new SearchCache(4, 1, TimeUnit.HOURS);
+    cache.put("Seattle WA", "Boston MA", true, 1, 1, itineraries(1));
+
+    assertSame(cache.get("Seattle WA", "Boston MA", true, 1, 1),
+               cache.get("Seattle WA", "Boston MA", true, 1, 1));
+  }
+}
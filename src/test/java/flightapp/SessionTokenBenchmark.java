@@ -0,0 +1,67 @@
+package flightapp;
+
+import java.security.SecureRandom;
+
+/**
+ * Compares the time to check a session token with the time to check a password against its
+ * stored hash, in both the current and the legacy hash format.
+ *
+ * Needs no database. Run it with
+ *
+ *   mvn test-compile exec:java -Dexec.mainClass=flightapp.SessionTokenBenchmark \
+ *       -Dexec.classpathScope=test -Dexec.args="[seconds per measurement]"
+ */
+public class SessionTokenBenchmark {
+  // Keeps results alive so the checks cannot be optimized away
+  private static int sink;
+
+  public static void main(String[] args) {
+    double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 5;
+
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    SessionTokens tokens = new SessionTokens(key, 3600);
+    String token = tokens.issue("benchmark", 0, 0L);
+    byte[] hash = PasswordUtils.saltAndHashPassword("password");
+    byte[] salt = PasswordUtils.generateSalt();
+    byte[] legacyKey = PasswordUtils.hashWithSalt("password", salt);
+    byte[] legacyHash = new byte[salt.length + legacyKey.length];
+    System.arraycopy(salt, 0, legacyHash, 0, salt.length);
+    System.arraycopy(legacyKey, 0, legacyHash, salt.length, legacyKey.length);
+
+    double tokenNanos = measure("session token", seconds,
+        () -> tokens.verify(token) != null);
+    double hashNanos = measure("password, current format", seconds,
+        () -> PasswordUtils.plaintextMatchesSaltedHash("password", hash));
+    double legacyNanos = measure("password, legacy format", seconds,
+        () -> PasswordUtils.plaintextMatchesSaltedHash("password", legacyHash));
+
+    System.out.printf("Token checks are %.0fx faster than current and %.0fx faster than legacy"
+        + " password checks%n", hashNanos / tokenNanos, legacyNanos / tokenNanos);
+  }
+
+  private interface Check {
+    boolean run();
+  }
+
+  // Runs the check for a warm-up period and then for the given time, and prints and returns
+  //    the mean nanoseconds per check
+  private static double measure(String name, double seconds, Check check) {
+    long warmUpEnd = System.nanoTime() + (long) (seconds * 1e9 / 2);
+    while (System.nanoTime() < warmUpEnd) {
+      sink += check.run() ? 1 : 0;
+    }
+    long count = 0;
+    long start = System.nanoTime();
+    long end = start + (long) (seconds * 1e9);
+    long now;
+    do {
+      sink += check.run() ? 1 : 0;
+      count++;
+      now = System.nanoTime();
+    } while (now < end);
+    double nanos = (double) (now - start) / count;
+    System.out.printf("%-26s %12.0f ns/check (%d checks)%n", name, nanos, count);
+    return nanos;
+  }
+}
@@ -0,0 +1,69 @@
+package flightapp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Savepoint;
+import org.junit.Test;
+
+public class TransactionTrackerTest {
+  // A connection that only remembers its auto-commit mode
+  private static Connection fakeConnection() {
+    boolean[] autoCommit = {true};
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+        new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getAutoCommit":
+              return autoCommit[0];
+            case "setAutoCommit":
+              autoCommit[0] = (Boolean) args[0];
+              return null;
+            default:
+              return null;
+          }
+        });
+  }
+
+  @Test
+  public void testCommittedAndRolledBackTransactionsAreNotDangling() throws Exception {
+    TransactionTracker tracker = new TransactionTracker(fakeConnection());
+    Connection conn = tracker.connection();
+
+    conn.setAutoCommit(false);
+    conn.commit();
+    conn.setAutoCommit(true);
+    assertFalse(tracker.dangling());
+
+    conn.setAutoCommit(false);
+    conn.rollback();
+    conn.setAutoCommit(true);
+    assertFalse(tracker.dangling());
+  }
+
+  @Test
+  public void testOpenTransactionIsDangling() throws Exception {
+    TransactionTracker tracker = new TransactionTracker(fakeConnection());
+    Connection conn = tracker.connection();
+
+    conn.setAutoCommit(false);
+    conn.rollback((Savepoint) null);
+    assertTrue(tracker.dangling());
+
+    tracker.reset();
+    assertFalse(tracker.dangling());
+    assertTrue(conn.getAutoCommit());
+  }
+
+  @Test
+  public void testImplicitCommitIsDangling() throws Exception {
+    TransactionTracker tracker = new TransactionTracker(fakeConnection());
+    Connection conn = tracker.connection();
+
+    // Turning auto-commit back on commits without the code having decided to
+    conn.setAutoCommit(false);
+    conn.setAutoCommit(true);
+    assertTrue(tracker.dangling());
+  }
+}
@@ -0,0 +1,46 @@
+package flightapp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class UsernameFilterTest {
+  @Test
+  public void testContainsEveryAddedNameInAnyCase() {
+    UsernameFilter filter = new UsernameFilter(1000);
+    for (int i = 0; i < 1000; i++) {
+      filter.add("User" + i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(filter.mightContain("user" + i));
+      assertTrue(filter.mightContain("USER" + i));
+    }
+  }
+
+  @Test
+  public void testFewFalsePositivesAtExpectedSize() {
+    UsernameFilter filter = new UsernameFilter(10000);
+    for (int i = 0; i < 10000; i++) {
+      filter.add("user" + i);
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (filter.mightContain("other" + i)) {
+        falsePositives++;
+      }
+    }
+
+    // Sized for 1%
+    assertTrue("false positives: " + falsePositives, falsePositives < 300);
+  }
+
+  @Test
+  public void testClearForgetsNames() {
+    UsernameFilter filter = new UsernameFilter(100);
+    filter.add("user1");
+    filter.clear();
+
+    assertFalse(filter.mightContain("user1"));
+  }
+}